@@ -0,0 +1,50 @@
+package fs.orientdb.benchmarks;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark once per thread count, writing the results of each run as JSON to the results directory so
+ * runs of different versions of the wrapper can be compared. Arguments are an optional regexp of the benchmarks to
+ * run and the thread counts, as in: java -jar target/benchmarks.jar existNode 1 4 16
+ * @author alonsod86
+ *
+ */
+public class BenchmarkRunner {
+
+	public static final int[] DEFAULT_THREADS = {1, 4, 16};
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : WrapperBenchmark.class.getSimpleName();
+		int[] threads = DEFAULT_THREADS;
+		if (args.length > 1) {
+			threads = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				threads[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		File results = new File("results");
+		results.mkdirs();
+		String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		for (int t : threads) {
+			if (t > GraphState.MAX_POOL) {
+				throw new IllegalArgumentException("At most " + GraphState.MAX_POOL + " threads, one connection of the pool each");
+			}
+			Options options = new OptionsBuilder()
+					.include(include)
+					.threads(t)
+					.resultFormat(ResultFormatType.JSON)
+					.result(new File(results, timestamp + "-" + t + "-threads.json").getPath())
+					.build();
+			new Runner(options).run();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package fs.orientdb.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import fs.orientdb.DB;
+import fs.orientdb.GraphInterface;
+import fs.orientdb.NodeEntry;
+import fs.orientdb.OrientConfiguration;
+import fs.orientdb.Pk;
+import fs.orientdb.RelationEntry;
+
+/**
+ * Database shared by every thread of a benchmark, loaded with a chain of size nodes (node i related to node i + 1)
+ * before the first iteration
+ * @author alonsod86
+ *
+ */
+@State(Scope.Benchmark)
+public class GraphState {
+
+	public static final String DATABASE = "benchmark";
+	public static final String CLASS = "Node";
+	public static final String PK = "pk";
+	public static final String RELATION = "next";
+
+	/** Max number of connections of the pool, it bounds the number of threads a run may use */
+	public static final int MAX_POOL = 64;
+
+	@Param({OrientConfiguration.DATABASE_MEMORY, OrientConfiguration.DATABASE_LOCAL})
+	public String databaseType;
+
+	@Param({"1000", "100000"})
+	public int size;
+
+	public GraphInterface graph;
+
+	// Next pk of the nodes created by the benchmarks, above the loaded ones
+	public AtomicLong nextPk;
+
+	private File directory;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String url;
+		if (OrientConfiguration.DATABASE_LOCAL.equals(databaseType)) {
+			directory = Files.createTempDirectory("orientdb-benchmark").toFile();
+			url = directory.getAbsolutePath();
+		} else {
+			url = "benchmark_" + System.nanoTime();
+		}
+		graph = new GraphInterface(new OrientConfiguration(url, 1, MAX_POOL, "admin", "admin", databaseType));
+		DB db = graph.createDatabase(DATABASE);
+		try {
+			db.existClass(CLASS, PK, true);
+			db.existRelationClass(RELATION, true, true);
+		} finally {
+			db.close();
+		}
+		load();
+		nextPk = new AtomicLong(size);
+	}
+
+	/**
+	 * Creates the nodes and relations every benchmark starts from
+	 */
+	private void load() {
+		List<NodeEntry> nodes = new ArrayList<NodeEntry>(size);
+		List<RelationEntry> relations = new ArrayList<RelationEntry>(size);
+		for (int i = 0; i < size; i++) {
+			HashMap<String, Object> attributes = new HashMap<String, Object>();
+			attributes.put("name", "node " + i);
+			attributes.put("value", i);
+			nodes.add(new NodeEntry(pk(i), attributes));
+			if (i > 0) {
+				relations.add(new RelationEntry(pk(i), pk(i - 1), RELATION, null));
+			}
+		}
+
+		DB db = graph.getOFactory(DATABASE).getDB(true);
+		try {
+			db.getSchema(CLASS).createNodes(nodes);
+			db.createRelations(relations, CLASS, DB.DEFAULT_BATCH_SIZE);
+		} finally {
+			db.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		graph.dropDatabase(DATABASE);
+		graph.shutdown();
+		if (directory != null) {
+			delete(directory);
+		}
+	}
+
+	public static Pk pk(long i) {
+		return new Pk(PK, String.valueOf(i));
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,118 @@
+package fs.orientdb.benchmarks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+
+import fs.orientdb.DB;
+import fs.orientdb.Schema;
+
+/**
+ * Throughput of the hot paths of the wrapper. Every thread works with its own pooled non transactional connection
+ * and picks the nodes it reads or writes with a random generator of fixed seed, so runs are repeatable.
+ * @author alonsod86
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class WrapperBenchmark {
+
+	/**
+	 * Connection and random generator of a benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Connection {
+		private static int threads = 0;
+
+		public DB db;
+		public Schema schema;
+		public Random random;
+
+		@Setup(Level.Trial)
+		public void open(GraphState graph) {
+			db = graph.graph.getOFactory(GraphState.DATABASE).getDB();
+			schema = db.getSchema(GraphState.CLASS);
+			synchronized (Connection.class) {
+				random = new Random(42 + threads++);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			db.close();
+			synchronized (Connection.class) {
+				threads = 0;
+			}
+		}
+
+		/**
+		 * Returns the pk of a random loaded node
+		 * @param graph
+		 * @return
+		 */
+		public long anyNode(GraphState graph) {
+			return random.nextInt(graph.size);
+		}
+	}
+
+	@Benchmark
+	public Vertex createNode(GraphState graph, Connection connection) {
+		HashMap<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put("name", "created");
+		return connection.schema.createNode(GraphState.pk(graph.nextPk.getAndIncrement()), attributes);
+	}
+
+	@Benchmark
+	public Vertex existNode(GraphState graph, Connection connection) {
+		return connection.schema.existNode(GraphState.pk(connection.anyNode(graph)));
+	}
+
+	@Benchmark
+	public Vertex upsertNode(GraphState graph, Connection connection) throws Exception {
+		HashMap<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put("value", connection.random.nextInt());
+		return connection.schema.upsertNode(GraphState.pk(connection.anyNode(graph)), attributes);
+	}
+
+	@Benchmark
+	public Edge createRelation(GraphState graph, Connection connection) {
+		Vertex in = connection.schema.existNode(GraphState.pk(connection.anyNode(graph)));
+		Vertex out = connection.schema.existNode(GraphState.pk(connection.anyNode(graph)));
+		return connection.db.createRelation(in, out, GraphState.RELATION);
+	}
+
+	@Benchmark
+	public Edge existRelation(GraphState graph, Connection connection) {
+		long i = 1 + connection.random.nextInt(graph.size - 1);
+		Vertex in = connection.schema.existNode(GraphState.pk(i));
+		Vertex out = connection.schema.existNode(GraphState.pk(i - 1));
+		return connection.db.existRelation(in, out, GraphState.RELATION, false, null);
+	}
+
+	@Benchmark
+	public List<ODocument> query(GraphState graph, Connection connection) {
+		long from = connection.anyNode(graph);
+		return connection.db.query("SELECT FROM " + GraphState.CLASS + " WHERE value >= " + from + " AND value < " + (from + 10));
+	}
+}
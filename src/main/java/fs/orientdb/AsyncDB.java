@@ -0,0 +1,222 @@
+package fs.orientdb;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous access to a database. Operations run on a fixed set of worker threads, each one owning a pooled
+ * connection for its whole life, since OrientDB connections are bound to the thread that opened them. The number of
+ * operations submitted and not finished yet is bounded: once the limit is reached, callers wait for a free slot
+ * instead of exhausting the pool.
+ * @author alonsod86
+ *
+ */
+public class AsyncDB implements Closeable {
+	static Logger log = LoggerFactory.getLogger(AsyncDB.class.getSimpleName());
+
+	/**
+	 * Operation run against the connection of a worker
+	 */
+	public interface Operation<T> {
+		T apply(DB db) throws Exception;
+	}
+
+	/**
+	 * Operation run against a class of the database
+	 */
+	public interface SchemaOperation<T> {
+		T apply(Schema schema) throws Exception;
+	}
+
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	private final ODatabase database;
+	private final boolean transactional;
+
+	private final ThreadPoolExecutor executor;
+	// Free slots for operations, taken on submit and released when the operation ends
+	private final Semaphore slots;
+	private final int maxInFlight;
+
+	// Connection of every worker thread, opened on its first operation
+	private final ThreadLocal<DB> connection = new ThreadLocal<DB>();
+
+	public AsyncDB(ODatabase database, int threads, int maxInFlight, boolean transactional) {
+		this.database = database;
+		this.transactional = transactional;
+		this.maxInFlight = maxInFlight;
+		this.slots = new Semaphore(maxInFlight);
+
+		final String prefix = "orientdb-async-" + instances.incrementAndGet() + "-";
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							r.run();
+						} finally {
+							closeConnection();
+						}
+					}
+				}, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Runs an operation on a worker, waiting for a free slot if the max number of operations in flight is reached
+	 * @param operation
+	 * @return
+	 */
+	public <T> CompletableFuture<T> submit(Operation<T> operation) {
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return failed(e);
+		}
+		return execute(operation);
+	}
+
+	/**
+	 * Runs an operation on a worker, waiting at most the given time for a free slot. If there is none, the future
+	 * fails with a RejectedExecutionException
+	 * @param operation
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 */
+	public <T> CompletableFuture<T> submit(Operation<T> operation, long timeout, TimeUnit unit) {
+		try {
+			if (!slots.tryAcquire(timeout, unit)) {
+				return failed(new RejectedExecutionException(maxInFlight + " operations already in flight"));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return failed(e);
+		}
+		return execute(operation);
+	}
+
+	/**
+	 * Runs an operation over a class of the database on a worker, waiting for a free slot if needed
+	 * @param className
+	 * @param operation
+	 * @return
+	 */
+	public <T> CompletableFuture<T> submit(final String className, final SchemaOperation<T> operation) {
+		return submit(new Operation<T>() {
+			@Override
+			public T apply(DB db) throws Exception {
+				return operation.apply(db.getSchema(className));
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of operations submitted and not finished yet
+	 * @return
+	 */
+	public int getInFlight() {
+		return maxInFlight - slots.availablePermits();
+	}
+
+	/**
+	 * Stops accepting operations, waits for the pending ones and returns every connection to the pool
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.warn("Async operations still running after 1 minute, interrupting them");
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private <T> CompletableFuture<T> execute(final Operation<T> operation) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(runOperation(operation));
+					} catch (Throwable e) {
+						future.completeExceptionally(e);
+					} finally {
+						slots.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			slots.release();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Runs an operation with the connection of the current worker. On a transactional connection the operation is
+	 * committed, and replayed if the commit conflicts with a concurrent write
+	 * @param operation
+	 * @return
+	 * @throws Exception
+	 */
+	private <T> T runOperation(final Operation<T> operation) throws Exception {
+		DB db = connection.get();
+		if (db == null) {
+			db = database.getDB(transactional);
+			connection.set(db);
+		}
+
+		if (!transactional) {
+			return operation.apply(db);
+		}
+		final DB tx = db;
+		return db.inTransaction("asyncOperation", new RetryPolicy.Action<T>() {
+			@Override
+			public T run(int attempt) throws Exception {
+				return operation.apply(tx);
+			}
+		});
+	}
+
+	private void closeConnection() {
+		DB db = connection.get();
+		if (db != null) {
+			connection.remove();
+			try {
+				db.close();
+			} catch (Exception e) {
+				log.error("Could not close connection of async worker {}. Reason is {}", Thread.currentThread().getName(), e.getMessage());
+			}
+		}
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable e) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(e);
+		return future;
+	}
+}
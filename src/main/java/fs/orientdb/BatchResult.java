@@ -0,0 +1,73 @@
+package fs.orientdb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a bulk load: how many records were written, skipped or failed, and the throughput of every batch
+ * @author alonsod86
+ *
+ * @param <T> type of the records loaded
+ */
+public class BatchResult<T> {
+
+	// Records written by the load
+	private long created;
+	// Records skipped because they already existed in the database
+	private long existing;
+	// Records skipped because they were repeated within the same batch
+	private long duplicated;
+	// Records that could not be written
+	private final List<T> failed = new ArrayList<T>();
+	// Records per second of every batch, in order
+	private final List<Double> throughput = new ArrayList<Double>();
+
+	void created() {
+		created++;
+	}
+
+	void existing() {
+		existing++;
+	}
+
+	void duplicated() {
+		duplicated++;
+	}
+
+	void failed(T record) {
+		failed.add(record);
+	}
+
+	void batch(int records, long nanos) {
+		throughput.add(nanos > 0 ? records * 1e9 / nanos : 0);
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public long getExisting() {
+		return existing;
+	}
+
+	public long getDuplicated() {
+		return duplicated;
+	}
+
+	public List<T> getFailed() {
+		return failed;
+	}
+
+	public List<Double> getThroughput() {
+		return throughput;
+	}
+
+	public int getBatches() {
+		return throughput.size();
+	}
+
+	@Override
+	public String toString() {
+		return "created: " + created + ", existing: " + existing + ", duplicated: " + duplicated + ", failed: " + failed.size() + ", batches: " + throughput.size();
+	}
+}
@@ -0,0 +1,237 @@
+package fs.orientdb;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Buffered writer of node updates of a class. Updates are collected by pk and their attributes merged (the last
+ * value of every key wins), so a node updated many times within a window is written only once. The window is
+ * checked on every update: the buffer is flushed when it holds the max number of nodes or its oldest update is older
+ * than the max delay. As connections are bound to their thread, it must be used from the thread owning the connection,
+ * and no timer can flush it: after a burst of updates the owner must call tick periodically (or flush), otherwise
+ * the last updates stay in the buffer until the next update or close. While the database fails, the automatic
+ * flushes back off and updates of new nodes are rejected once the buffer holds the max number of buffered nodes.
+ * @author alonsod86
+ *
+ */
+public class CoalescingWriter implements Closeable {
+	static Logger log = LoggerFactory.getLogger(CoalescingWriter.class.getSimpleName());
+
+	/** Max millis an update waits in the buffer */
+	public static final long DEFAULT_MAX_DELAY = 1000;
+	/** Max number of nodes waiting in the buffer */
+	public static final int DEFAULT_MAX_PENDING = 1000;
+	/** Max millis between automatic flushes after consecutive failures */
+	public static final long MAX_BACKOFF = 30000;
+
+	private final Schema schema;
+	private final long maxDelay;
+	private final int maxPending;
+	// Nodes the buffer holds at most when the flushes fail, updates of other nodes are rejected
+	private final int maxBuffered;
+
+	// Merged updates of every node waiting to be written, in order of first update
+	private final LinkedHashMap<Pk, Merged> pending = new LinkedHashMap<Pk, Merged>();
+	// When the oldest pending update was received
+	private long windowStart;
+	// Wait after the last failed flush (0 if it succeeded) and when the next automatic flush may run
+	private long backoff;
+	private long retryAt;
+
+	private long received;
+	// Updates merged in the nodes written or found missing
+	private long done;
+	private long written;
+	private long missing;
+	private long rejected;
+
+	public CoalescingWriter(Schema schema, long maxDelay, int maxPending) {
+		this(schema, maxDelay, maxPending, 10 * maxPending);
+	}
+
+	public CoalescingWriter(Schema schema, long maxDelay, int maxPending, int maxBuffered) {
+		this.schema = schema;
+		this.maxDelay = maxDelay;
+		this.maxPending = maxPending;
+		this.maxBuffered = maxBuffered;
+	}
+
+	/**
+	 * Buffers an update of the attributes of an existing node, flushing the buffer if the window is over
+	 * @param pk
+	 * @param attributes
+	 * @throws RejectedExecutionException if the node is not buffered yet and the buffer is full, as its flushes fail
+	 */
+	public synchronized void update(Pk pk, HashMap<String, ?> attributes) {
+		long now = System.currentTimeMillis();
+		Merged merged = pending.get(pk);
+		if (merged == null) {
+			if (pending.size() >= maxBuffered) {
+				rejected++;
+				throw new RejectedExecutionException("Could not buffer update of node " + pk + " of class " + schema.getClassName() + ", " + pending.size() + " nodes are waiting to be written");
+			}
+			if (pending.isEmpty()) {
+				windowStart = now;
+			}
+			merged = new Merged();
+			pending.put(pk, merged);
+		}
+		merged.attributes.putAll(attributes);
+		merged.updates++;
+		received++;
+
+		if (now >= retryAt && (pending.size() >= maxPending || now - windowStart >= maxDelay)) {
+			flush();
+		}
+	}
+
+	/**
+	 * Flushes the buffer if its oldest update is older than the max delay, unless it is backing off after a failed flush
+	 * @return false if the pending updates could not be written
+	 */
+	public synchronized boolean tick() {
+		long now = System.currentTimeMillis();
+		if (now < retryAt) {
+			return false;
+		}
+		if (!pending.isEmpty() && now - windowStart >= maxDelay) {
+			return flush();
+		}
+		return true;
+	}
+
+	/**
+	 * Writes every pending update, one write per node, committing them on a transactional connection. Updates are only
+	 * removed from the buffer once saved: the ones that could not be written, and every one of a failed commit, are kept
+	 * pending for the next flush
+	 * @return false if the pending updates could not be written
+	 */
+	public synchronized boolean flush() {
+		if (pending.isEmpty()) {
+			return true;
+		}
+		DB db = schema.getDB();
+		final List<Pk> saved = new ArrayList<Pk>(pending.size());
+		final List<Pk> notFound = new ArrayList<Pk>();
+		boolean ok = true;
+		try {
+			// a conflicting commit is rolled back and every update written again
+			db.inTransaction("flushUpdates", new RetryPolicy.Action<Void>() {
+				@Override
+				public Void run(int attempt) throws Exception {
+					saved.clear();
+					notFound.clear();
+					for (Map.Entry<Pk, Merged> entry : pending.entrySet()) {
+						Vertex node = schema.existNode(entry.getKey());
+						if (node == null) {
+							log.warn("Could not update node {} of class {}. Reason is {}", entry.getKey(), schema.getClassName(), "NODE NOT FOUND");
+							notFound.add(entry.getKey());
+							continue;
+						}
+						schema.writeNode(node, entry.getValue().attributes, false);
+						saved.add(entry.getKey());
+					}
+					return null;
+				}
+			});
+		} catch (Exception e) {
+			log.error("Could not write {} coalesced updates on database {}, keeping them pending. Reason is {}", pending.size(), db.getDatabaseName(), e.getMessage());
+			ok = false;
+			backOff();
+			if (db.isTransactional()) {
+				// rolled back, nothing has been saved
+				windowStart = System.currentTimeMillis();
+				return false;
+			}
+			// without a transaction the nodes written before the failure are already saved
+		}
+		written += saved.size();
+		missing += notFound.size();
+		remove(saved);
+		remove(notFound);
+		if (!pending.isEmpty()) {
+			windowStart = System.currentTimeMillis();
+		}
+		if (ok) {
+			backoff = 0;
+			retryAt = 0;
+		}
+		return ok;
+	}
+
+	/**
+	 * Delays the next automatic flush, doubling the wait after every consecutive failure
+	 */
+	private void backOff() {
+		backoff = backoff == 0 ? Math.max(maxDelay, 1) : Math.min(backoff * 2, MAX_BACKOFF);
+		retryAt = System.currentTimeMillis() + backoff;
+	}
+
+	private void remove(List<Pk> pks) {
+		for (Pk pk : pks) {
+			done += pending.remove(pk).updates;
+		}
+	}
+
+	/**
+	 * Flushes the pending updates
+	 */
+	@Override
+	public void close() {
+		flush();
+	}
+
+	/**
+	 * Returns the number of updates received per write done, the higher the more updates have been merged
+	 * @return
+	 */
+	public synchronized double getCoalescingRatio() {
+		return written + missing > 0 ? (double) done / (written + missing) : 0;
+	}
+
+	/**
+	 * Returns the number of nodes waiting to be written
+	 * @return
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	public synchronized long getReceived() {
+		return received;
+	}
+
+	public synchronized long getWritten() {
+		return written;
+	}
+
+	public synchronized long getMissing() {
+		return missing;
+	}
+
+	/**
+	 * Returns the number of updates rejected because the buffer was full
+	 * @return
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Attributes merged from the updates of a node
+	 */
+	private static class Merged {
+		final HashMap<String, Object> attributes = new HashMap<String, Object>();
+		int updates;
+	}
+}
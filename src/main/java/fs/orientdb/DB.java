@@ -1,14 +1,32 @@
 package fs.orientdb;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.db.record.ridbag.ORidBag;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.index.OIndex;
+import com.orientechnologies.orient.core.index.OIndexManager;
 import com.orientechnologies.orient.core.iterator.ORecordIteratorClass;
 import com.orientechnologies.orient.core.metadata.schema.OClass;
 import com.orientechnologies.orient.core.metadata.schema.OType;
@@ -16,17 +34,24 @@ import com.orientechnologies.orient.core.record.impl.ODocument;
 import com.orientechnologies.orient.core.sql.OCommandSQL;
 import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 import com.orientechnologies.orient.core.storage.ORecordDuplicatedException;
+import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
 import com.tinkerpop.blueprints.impls.orient.OrientDynaElementIterable;
+import com.tinkerpop.blueprints.impls.orient.OrientEdge;
 import com.tinkerpop.blueprints.impls.orient.OrientEdgeType;
+import com.tinkerpop.blueprints.impls.orient.OrientElement;
 import com.tinkerpop.blueprints.impls.orient.OrientGraph;
 import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
 import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
 import com.tinkerpop.blueprints.impls.orient.OrientVertex;
 import com.tinkerpop.blueprints.impls.orient.OrientVertexType;
 
+import fs.orientdb.constants.OPERATION;
+import fs.orientdb.constants.RELATION_LOOKUP;
+
 /**
  * Database instance with the interface to OrientDB
  * Created by dgutierrez on 23/5/15.
@@ -34,6 +59,26 @@ import com.tinkerpop.blueprints.impls.orient.OrientVertexType;
 public class DB {
 	static Logger log = LoggerFactory.getLogger(DB.class.getSimpleName());
 
+	/** Relations written per commit by the bulk operations */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	/** Max number of vertex rids remembered by a bulk load of relations */
+	public static final int RID_CACHE_SIZE = 100000;
+
+	/** Suffix of the name of the index over the vertices of a relation class */
+	public static final String VERTICES_INDEX_SUFFIX = ".out_in";
+
+	// Fields of the index over the vertices of the relations, as kept in the schema cache
+	private static final String VERTICES_INDEX_FIELDS = "out,in";
+
+	// Statements that change the schema, run through executeQuery
+	private static final Pattern SCHEMA_COMMAND = Pattern.compile("^\\s*(CREATE|ALTER|DROP)\\s+(CLASS|PROPERTY|INDEX)\\b", Pattern.CASE_INSENSITIVE);
+
+	// Statements that only read, the ones a read only connection may run through executeQuery
+	private static final Pattern READ_COMMAND = Pattern.compile("^\\s*(SELECT|TRAVERSE|MATCH|EXPLAIN)\\b", Pattern.CASE_INSENSITIVE);
+
+	// Class and key of the lookups already warned to be done with a scan
+	private static final Set<String> scannedLookups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
 	// Instance to a transactional graph database
 	private OrientGraph txGraph;
 
@@ -46,6 +91,27 @@ public class DB {
 	// Instance to the factory used to create instances to database
 	private OrientGraphFactory factory;
 
+	// Instance to the pooled database this connection belongs to (null if created directly from a factory)
+	private ODatabase database;
+
+	// Parameterized statements used by the lookups
+	private QueryCache queryCache;
+
+	// Classes and indexes known to exist
+	private SchemaCache schemaCache;
+
+	// Retries of the writes that conflict with concurrent writes
+	private RetryPolicy retryPolicy;
+
+	// Latency and error metrics of the operations
+	private MetricsRegistry metrics;
+
+	// Log of the slow queries (null if disabled)
+	private SlowQueryLog slowQueryLog;
+
+	// True for the read connections, which reject every write
+	private boolean readOnly;
+
 	// JSON serializer
 	private ObjectMapper json = new ObjectMapper();
 
@@ -55,7 +121,44 @@ public class DB {
 	 * @param transactional
 	 */
 	public DB(OrientGraphFactory factory, boolean transactional) {
+		this(factory, null, transactional);
+	}
+
+	/**
+	 * Create an active connection from the pool of a database, sharing its caches
+	 * @param database
+	 * @param transactional
+	 */
+	public DB(ODatabase database, boolean transactional) {
+		this(database.getFactory(), database, transactional);
+	}
+
+	/**
+	 * Create an active connection from the given pool, sharing the caches of a database
+	 * @param factory
+	 * @param database
+	 * @param transactional
+	 */
+	DB(OrientGraphFactory factory, ODatabase database, boolean transactional) {
+		this(factory, database, transactional, false);
+	}
+
+	/**
+	 * Create an active connection from the given pool, sharing the caches of a database, that may only read
+	 * @param factory
+	 * @param database
+	 * @param transactional
+	 * @param readOnly
+	 */
+	DB(OrientGraphFactory factory, ODatabase database, boolean transactional, boolean readOnly) {
+		this.readOnly = readOnly;
 		this.factory = factory;
+		this.database = database;
+		this.queryCache = database != null ? database.getQueryCache() : new QueryCache();
+		this.schemaCache = database != null ? database.getSchemaCache() : new SchemaCache();
+		this.retryPolicy = database != null ? database.getConfig().getRetryPolicy() : new RetryPolicy();
+		this.metrics = database != null ? database.getMetrics() : MetricsRegistry.NONE;
+		this.slowQueryLog = database != null ? database.getConfig().getSlowQueryLog() : null;
 		if (transactional) {
 			this.txGraph = factory.getTx();
 			this.graphDB = this.txGraph;
@@ -89,14 +192,47 @@ public class DB {
 		return this.txGraph != null;
 	}
 
+	/**
+	 * Returns true if this is a read connection, which rejects every write
+	 * @return
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Fails if this is a read connection
+	 */
+	void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("Connection to database " + getDatabaseName() + " is read only, writes must use getDB");
+		}
+	}
+
+	/**
+	 * Returns true if the running transaction has changes not committed yet
+	 * @return
+	 */
+	public boolean hasPendingChanges() {
+		return isTransactional() && this.txGraph.getRawGraph().getTransaction().getEntryCount() > 0;
+	}
+
 	/**
 	 * Begins a transaction only on a transactional connection
 	 */
 	public void begin() {
-		if (isTransactional()) {
-			this.txGraph.begin();
-		} else {
-			log.warn("Commit is not necessary with a non transactional connection");
+		long start = metrics.start();
+		try {
+			if (isTransactional()) {
+				this.txGraph.begin();
+			} else {
+				log.warn("Commit is not necessary with a non transactional connection");
+			}
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_BEGIN);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_BEGIN, start);
 		}
 	}
 
@@ -104,10 +240,18 @@ public class DB {
 	 * Commits a transaction only on a transactional connection
 	 */
 	public void commit() {
-		if (isTransactional()) {
-			this.txGraph.commit();
-		} else {
-			log.warn("Commit is not necessary with a non transactional connection");
+		long start = metrics.start();
+		try {
+			if (isTransactional()) {
+				this.txGraph.commit();
+			} else {
+				log.warn("Commit is not necessary with a non transactional connection");
+			}
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_COMMIT);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_COMMIT, start);
 		}
 	}
 
@@ -115,10 +259,18 @@ public class DB {
 	 * Rolls back a transaction only on a transactional connection
 	 */
 	public void rollback() {
-		if (isTransactional()){
-			this.txGraph.rollback();
-		} else {
-			log.warn("Rollback won't work on a non transactional connection");
+		long start = metrics.start();
+		try {
+			if (isTransactional()){
+				this.txGraph.rollback();
+			} else {
+				log.warn("Rollback won't work on a non transactional connection");
+			}
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_ROLLBACK);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_ROLLBACK, start);
 		}
 	}
 
@@ -128,7 +280,15 @@ public class DB {
 	 * @return
 	 */
 	public ORecordIteratorClass<ODocument> browseClass(String Schema){
-		return this.factory.getDatabase().browseClass(Schema);    		
+		long start = metrics.start();
+		try {
+			return this.factory.getDatabase().browseClass(Schema);
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_BROWSE_CLASS);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_BROWSE_CLASS, start);
+		}
 	}
 
 	/**
@@ -137,7 +297,65 @@ public class DB {
 	 * @return
 	 */
 	public List<ODocument> query(String sql){
-		return this.factory.getDatabase().query(new OSQLSynchQuery<ODocument> (sql));
+		long start = metrics.start();
+		long begin = slowQueryLog != null ? System.nanoTime() : 0;
+		try {
+			ODatabaseDocumentTx rawDB = this.factory.getDatabase();
+			List<ODocument> result = rawDB.query(new OSQLSynchQuery<ODocument> (sql));
+			if (slowQueryLog != null) {
+				slowQueryLog.record(rawDB, sql, System.nanoTime() - begin, result.size());
+			}
+			return result;
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_QUERY);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_QUERY, start);
+		}
+	}
+
+	/**
+	 * Executes a SQL query returning a lazy stream of ODocuments, fetched in pages of the configured size.
+	 * The stream must be closed once consumed
+	 * @param sql
+	 * @param params
+	 * @return
+	 */
+	public Stream<ODocument> stream(String sql, Object... params){
+		final QueryIterator it = iterate(sql, getPageSize(), params);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(new Runnable() {
+					@Override
+					public void run() {
+						it.close();
+					}
+				});
+	}
+
+	/**
+	 * Executes a SQL query returning a lazy iterator of ODocuments, fetched in pages of the given size.
+	 * The iterator should be closed if it is not consumed completely
+	 * @param sql
+	 * @param pageSize
+	 * @param params
+	 * @return
+	 */
+	public QueryIterator iterate(String sql, int pageSize, Object... params){
+		QueryIterator it = new QueryIterator(this.graphDB.getRawGraph(), sql, pageSize, params);
+		it.setSlowQueryLog(slowQueryLog);
+		it.setMetrics(metrics);
+		return it;
+	}
+
+	/**
+	 * Returns the number of records fetched per page by the lazy queries, as set in the configuration
+	 * @return
+	 */
+	private int getPageSize() {
+		if (database != null && database.getConfig().getQueryPageSize() != null) {
+			return database.getConfig().getQueryPageSize();
+		}
+		return OrientConfiguration.DEFAULT_QUERY_PAGE_SIZE;
 	}
 
 	/**
@@ -147,16 +365,23 @@ public class DB {
 	 * @return
 	 */
 	public OrientVertexType createClass (String className, String pKey){
+		long start = metrics.start();
 		try{
+			checkWritable();
 			OrientVertexType vertexType = graphDB.createVertexType(className, "V");
 			if (pKey != null){						
 				vertexType.createProperty(pKey, OType.STRING);
 				vertexType.createIndex(className + "." + pKey, OClass.INDEX_TYPE.UNIQUE, pKey);						
 			}
+			schemaCache.invalidate(className);
+			schemaCache.addVertexClass(className);
 			return vertexType;
 		}catch (Exception e){
+			metrics.error(OPERATION.DB_CREATE_CLASS);
 			log.error("Could not create class of type {} on database {}. Reason is {}", className, getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.DB_CREATE_CLASS, start);
 		}
 	}
 
@@ -167,15 +392,25 @@ public class DB {
 	 * @return boolean if the class exists (or has been created)
 	 */
 	public boolean existClass(String className, String pKey, boolean createIt){
+		long start = metrics.start();
 		try {
+			if (schemaCache.isVertexClass(className)) {
+				return true;
+			}
 			OrientVertexType vertexType = graphDB.getVertexType(className);
 			if (vertexType == null && createIt){
 				vertexType = createClass(className, pKey);
 			}
+			if (vertexType != null) {
+				schemaCache.addVertexClass(className);
+			}
 			return (vertexType != null);
 		} catch (Exception e) {
+			metrics.error(OPERATION.DB_EXIST_CLASS);
 			log.error("Could not check existence of class type {} on database {}. Reason is {}", className, getDatabaseName(), e.getMessage());
 			return false;
+		} finally {
+			metrics.stop(OPERATION.DB_EXIST_CLASS, start);
 		}
 	}
 
@@ -197,15 +432,40 @@ public class DB {
 	 */
 
 	public boolean existRelationClass(String className, boolean createIt) {
+		return existRelationClass(className, createIt, false);
+	}
+
+	/**
+	 * Checks if a relation class exists. If not, it may be created, optionally with an index over the vertices of its
+	 * relations that speeds up existRelation
+	 * @param className the name of relation
+	 * @param createIt if it should be created if doesn't exist
+	 * @param indexVertices if the (out, in) index should be created when missing
+	 * @return
+	 */
+	public boolean existRelationClass(String className, boolean createIt, boolean indexVertices) {
+		long start = metrics.start();
 		try {
+			boolean indexed = createIt && indexVertices;
+			if (schemaCache.isRelationClass(className, indexed)) {
+				return true;
+			}
 			OrientEdgeType edgeType = graphDB.getEdgeType(className);
 			if (edgeType == null && createIt){
-				edgeType = createRelationClass(className);
+				edgeType = createRelationClass(className, indexVertices);
+			} else if (edgeType != null && indexed && getVerticesIndex(className) == null) {
+				createVerticesIndex(edgeType);
+			}
+			if (edgeType != null) {
+				schemaCache.addRelationClass(className, indexed);
 			}
 			return (edgeType != null);
 		} catch (Exception e) {
+			metrics.error(OPERATION.DB_EXIST_RELATION_CLASS);
 			log.error("Could not check existence of relationship class type {} on database {}. Reason is {}", className, getDatabaseName(), e.getMessage());
 			return false;
+		} finally {
+			metrics.stop(OPERATION.DB_EXIST_RELATION_CLASS, start);
 		}
 	}
 
@@ -215,15 +475,82 @@ public class DB {
 	 * @return
 	 */
 	public OrientEdgeType createRelationClass(String name){
+		return createRelationClass(name, false);
+	}
+
+	/**
+	 * Creates a new relation class for edges, optionally with a composite index over the (out, in) vertices of its relations
+	 * @param name
+	 * @param indexVertices
+	 * @return
+	 */
+	public OrientEdgeType createRelationClass(String name, boolean indexVertices){
+		long start = metrics.start();
 		try {
-			OrientEdgeType edgeType = graphDB.createEdgeType(name, "E");		
+			checkWritable();
+			OrientEdgeType edgeType = graphDB.createEdgeType(name, "E");
+			if (indexVertices) {
+				createVerticesIndex(edgeType);
+			}
+			schemaCache.invalidate(name);
+			schemaCache.addRelationClass(name, indexVertices);
 			return edgeType;
 		} catch (Exception e) {
+			metrics.error(OPERATION.DB_CREATE_RELATION_CLASS);
 			log.error("Could not create class for relationship type {} on database {}. Reason is {}", name, getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.DB_CREATE_RELATION_CLASS, start);
 		}
 	}
 
+	/**
+	 * Creates the not unique composite index className.out_in over the vertices of the relations of a class
+	 * @param edgeType
+	 */
+	private void createVerticesIndex(OrientEdgeType edgeType) {
+		if (edgeType.getProperty("out") == null) {
+			edgeType.createProperty("out", OType.LINK);
+		}
+		if (edgeType.getProperty("in") == null) {
+			edgeType.createProperty("in", OType.LINK);
+		}
+		edgeType.createIndex(edgeType.getName() + VERTICES_INDEX_SUFFIX, OClass.INDEX_TYPE.NOTUNIQUE, "out", "in");
+		schemaCache.invalidate(edgeType.getName());
+	}
+
+	/**
+	 * Returns the index over the (out, in) vertices of a relation class, or null if there is none
+	 * @param className
+	 * @return
+	 */
+	public OIndex<?> getVerticesIndex(String className) {
+		OIndexManager indexManager = this.graphDB.getRawGraph().getMetadata().getIndexManager();
+		String name = schemaCache.getIndex(className, VERTICES_INDEX_FIELDS);
+		if (name != null) {
+			// a cached name of an index dropped since then is looked up again
+			OIndex<?> cached = name.isEmpty() ? null : indexManager.getIndex(name);
+			if (cached != null || name.isEmpty()) {
+				return cached;
+			}
+		}
+		OIndex<?> index = findVerticesIndex(className, indexManager);
+		schemaCache.putIndex(className, VERTICES_INDEX_FIELDS, index != null ? index.getName() : null);
+		return index;
+	}
+
+	private OIndex<?> findVerticesIndex(String className, OIndexManager indexManager) {
+		OIndex<?> index = indexManager.getClassIndex(className, className + VERTICES_INDEX_SUFFIX);
+		if (index == null && this.graphDB.getRawGraph().getMetadata().getSchema().existsClass(className)) {
+			for (OIndex<?> candidate : indexManager.getClassInvolvedIndexes(className, "out", "in")) {
+				if (candidate.getDefinition().getFields().get(0).equals("out")) {
+					return candidate;
+				}
+			}
+		}
+		return index;
+	}
+
 	/**
 	 * Search for a relation between two nodes and with a given name
 	 * @param inNode
@@ -236,24 +563,78 @@ public class DB {
 	}
 
 	/**
-	 * Return a node with hte pk of the passed class
+	 * Return a node with hte pk of the passed class. The lookup goes through the unique index of the class for
+	 * that key if there is one, otherwise the class is scanned
 	 * @param className
 	 * @param pkValue
 	 * @return
 	 */
 	public Vertex existNode(String className, String key, Object value){
+		long start = metrics.start();
 		try {
-			OrientDynaElementIterable lVertices = this.executeQuery("SELECT FROM " + className + " WHERE " + key + " LIKE '" + value + "'");
+			OIndex<?> index = getUniqueIndex(className, key);
+			if (index != null) {
+				Object rid = index.get(index.getDefinition().createValue(value));
+				return rid != null ? this.graphDB.getVertex(rid) : null;
+			}
+
+			if (scannedLookups.add(getDatabaseName() + ":" + className + "." + key)) {
+				log.warn("No unique index found for {}.{} on database {}. Looking up nodes with a scan", className, key, getDatabaseName());
+			}
+			OrientDynaElementIterable lVertices = this.graphDB.command(queryCache.command(QueryCache.NODE_BY_KEY, className, key)).execute(value);
 			Vertex v = null;
 			for (Object vertex : lVertices){
 				v = (Vertex) vertex;				
 			}
 			return v;
 		} catch (Exception e) {
+			metrics.error(OPERATION.DB_EXIST_NODE);
 			log.error("Could not check if node {} exists on database {}. Reason is {}", key+":"+value, getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.DB_EXIST_NODE, start);
+		}
+	}
+
+	/**
+	 * Returns the unique index of a class over a single key, preferring the one named as className.key
+	 * @param className
+	 * @param key
+	 * @return the index, or null if there is none
+	 */
+	public OIndex<?> getUniqueIndex(String className, String key) {
+		OIndexManager indexManager = this.graphDB.getRawGraph().getMetadata().getIndexManager();
+		String name = schemaCache.getIndex(className, key);
+		if (name != null) {
+			// a cached name of an index dropped since then is looked up again
+			OIndex<?> cached = name.isEmpty() ? null : indexManager.getIndex(name);
+			if (cached != null || name.isEmpty()) {
+				return cached;
+			}
+		}
+		OIndex<?> index = findUniqueIndex(className, key, indexManager);
+		schemaCache.putIndex(className, key, index != null ? index.getName() : null);
+		return index;
+	}
+
+	private OIndex<?> findUniqueIndex(String className, String key, OIndexManager indexManager) {
+		OIndex<?> index = indexManager.getClassIndex(className, className + "." + key);
+		if (index != null && isUnique(index)) {
+			return index;
+		}
+		if (this.graphDB.getRawGraph().getMetadata().getSchema().existsClass(className)) {
+			for (OIndex<?> candidate : indexManager.getClassInvolvedIndexes(className, key)) {
+				if (isUnique(candidate)) {
+					return candidate;
+				}
+			}
 		}
+		return null;
+	}
 
+	private static boolean isUnique(OIndex<?> index) {
+		String type = index.getType();
+		return OClass.INDEX_TYPE.UNIQUE.name().equals(type) || OClass.INDEX_TYPE.UNIQUE_HASH_INDEX.name().equals(type);
 	}
 
 	/**
@@ -280,21 +661,19 @@ public class DB {
 	 * @return boolean. If the nodes exists or not.
 	 */
 	public Vertex existNodeIndex(Object value, String index) {
+		long start = metrics.start();
 		try {
-			String val = null;
-			if (value instanceof String) {
-				val = "\"" + value + "\"";
-			} else {
-				val = value.toString();
-			}
-			OrientDynaElementIterable vertex = executeQuery("SELECT rid as node FROM index:" + index + " WHERE key = " + val);
+			OrientDynaElementIterable vertex = this.graphDB.command(queryCache.command(QueryCache.NODE_BY_INDEX, index)).execute(value);
 			OrientVertex v = (OrientVertex) vertex.iterator().next();
 			if (v!=null) {
 				return v.getProperty("node");
 			}
 		} catch (Exception e) {
+			metrics.error(OPERATION.DB_EXIST_NODE_INDEX);
 			log.error("Could not check existence of node in database {}. Reason is {}", getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.DB_EXIST_NODE_INDEX, start);
 		}
 		return null;
 	}
@@ -310,15 +689,11 @@ public class DB {
 	 */
 	public Edge existRelation (Vertex inNode, Vertex outNode, String name, boolean createIt, HashMap<String, ?> attributes){
 		try {
-			OCommandSQL sql = new OCommandSQL("SELECT * FROM " + name + " WHERE out=\"" + outNode.getId() + "\" AND in=\"" + inNode.getId() + "\"");
-			OrientDynaElementIterable lEdges = this.graphDB.command(sql).execute();
-			Iterator<Object> itr = lEdges.iterator();
-			if(itr.hasNext()) {
-				return (Edge) itr.next();
-			}
-			if (createIt){
+			Edge edge = existRelation(inNode, outNode, name, getRelationLookup());
+			if (edge == null && createIt){
 				return createRelation(inNode, outNode, name, attributes);
 			}
+			return edge;
 		} catch (Exception e) {
 			log.error("Could not check existence of relationship {} - {} - {} on database {}. Reason is {}", outNode.getId(), name, inNode.getId(), getDatabaseName(), e.getMessage());
 		}
@@ -326,24 +701,166 @@ public class DB {
 	}
 
 	/**
-	 * Search for a relation between two nodes and with a given name. If doesn't exist, may create it
+	 * Search for a relation between two nodes and with a given name, choosing how it is looked up
 	 * @param inNode
 	 * @param outNode
 	 * @param name
-	 * @param createIt
+	 * @param lookup
+	 * @return
+	 */
+	public Edge existRelation (Vertex inNode, Vertex outNode, String name, RELATION_LOOKUP lookup){
+		long start = metrics.start();
+		try {
+			if (lookup == RELATION_LOOKUP.ADJACENCY) {
+				return existRelationByAdjacency((OrientVertex) inNode, (OrientVertex) outNode, name);
+			}
+
+			OIndex<?> index = getVerticesIndex(name);
+			if (index != null) {
+				Object rids = index.get(index.getDefinition().createValue(outNode.getId(), inNode.getId()));
+				if (rids instanceof Collection && !((Collection<?>) rids).isEmpty()) {
+					return this.graphDB.getEdge(((Collection<?>) rids).iterator().next());
+				}
+			} else {
+				OCommandSQL sql = queryCache.command(QueryCache.RELATION_BY_VERTICES, name);
+				OrientDynaElementIterable lEdges = this.graphDB.command(sql).execute(outNode.getId(), inNode.getId());
+				Iterator<Object> itr = lEdges.iterator();
+				if(itr.hasNext()) {
+					return (Edge) itr.next();
+				}
+			}
+			return null;
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_EXIST_RELATION);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_EXIST_RELATION, start);
+		}
+	}
+
+	/**
+	 * Looks a relation up walking the relations with that name of the vertex that has less of them, so a vertex with
+	 * lots of relations (a supernode) is never iterated unless both are
+	 * @param inNode
+	 * @param outNode
+	 * @param name
+	 * @return
+	 */
+	private Edge existRelationByAdjacency (OrientVertex inNode, OrientVertex outNode, String name){
+		int outDegree = degree(outNode, Direction.OUT, name);
+		int inDegree = degree(inNode, Direction.IN, name);
+		if (outDegree == 0 || inDegree == 0) {
+			return null;
+		}
+
+		boolean fromOut = outDegree <= inDegree;
+		OrientVertex walked = fromOut ? outNode : inNode;
+		ORID target = (fromOut ? inNode : outNode).getIdentity();
+		for (Edge edge : walked.getEdges(fromOut ? Direction.OUT : Direction.IN, name)) {
+			OrientEdge oEdge = (OrientEdge) edge;
+			OIdentifiable opposite = fromOut ? oEdge.getInVertex() : oEdge.getOutVertex();
+			if (opposite != null && target.equals(opposite.getIdentity())) {
+				return edge;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of relations with a name of a vertex in a direction, reading only the size of the field
+	 * that holds them
+	 * @param vertex
+	 * @param direction
+	 * @param name
+	 * @return
+	 */
+	private int degree(OrientVertex vertex, Direction direction, String name) {
+		String field = OrientVertex.getConnectionFieldName(direction, name, this.graphDB.isUseVertexFieldsForEdgeLabels());
+		Object connections = vertex.getRecord().rawField(field);
+		if (connections == null) {
+			return 0;
+		} else if (connections instanceof ORidBag) {
+			return ((ORidBag) connections).size();
+		} else if (connections instanceof Collection) {
+			return ((Collection<?>) connections).size();
+		}
+		// a single link
+		return 1;
+	}
+
+	/**
+	 * Returns how relations are looked up by default, as set in the configuration
+	 * @return
+	 */
+	public RELATION_LOOKUP getRelationLookup() {
+		if (database != null && database.getConfig().getRelationLookup() != null) {
+			return database.getConfig().getRelationLookup();
+		}
+		return RELATION_LOOKUP.QUERY;
+	}
+
+	/**
+	 * Returns true if the writes set the fields through the native API instead of SQL commands
+	 * @return
+	 */
+	public boolean isNativeWrites() {
+		return database == null || !Boolean.FALSE.equals(database.getConfig().getNativeWrites());
+	}
+
+	/**
+	 * Returns the field where writes store the fingerprint of their attributes, or null if fingerprints are disabled
+	 * @return
+	 */
+	public String getFingerprintField() {
+		return database != null ? database.getConfig().getFingerprintField() : null;
+	}
+
+	/**
+	 * Returns the fingerprint of the attributes, or null if fingerprints are disabled
+	 * @param attributes
+	 * @return
+	 */
+	Long fingerprint(Map<String, ?> attributes) {
+		String field = getFingerprintField();
+		if (field == null || attributes == null) {
+			return null;
+		}
+		return Fingerprint.of(attributes, field);
+	}
+
+	/**
+	 * Returns true if the element was last written with the attributes of the given fingerprint
+	 * @param element
+	 * @param fingerprint
+	 * @return
+	 */
+	boolean isUnchanged(Element element, Long fingerprint) {
+		return fingerprint != null && fingerprint.equals(element.getProperty(getFingerprintField()));
+	}
+
+	/**
+	 * Search for a relation between two nodes of any class given their Pks. Both nodes are looked up once, and the
+	 * relation between them as configured in the relation lookup. Nodes of a known class are better looked up through
+	 * the schema of their class, which uses its unique index
+	 * @param in
+	 * @param out
+	 * @param name
 	 * @param attributes the attributes of the relation.
 	 * @return
 	 */
 	public Edge existRelation (Pk in, Pk out, String name, HashMap<String, ?> attributes){
+		long start = metrics.start();
 		try {
-			OCommandSQL sql = new OCommandSQL("SELECT FROM " + name + " WHERE out IN (SELECT FROM V WHERE " + out.toQuery() + ") AND in IN (SELECT FROM V WHERE " + in.toQuery() + ")");
-			OrientDynaElementIterable lEdges = this.graphDB.command(sql).execute();
-			Iterator<Object> itr = lEdges.iterator();
-			if(itr.hasNext()) {
-				return (Edge) itr.next();
+			Vertex inNode = existNode(in);
+			Vertex outNode = existNode(out);
+			if (inNode != null && outNode != null) {
+				return existRelation(inNode, outNode, name, false, attributes);
 			}
 		} catch (Exception e) {
+			metrics.error(OPERATION.DB_EXIST_RELATION);
 			log.error("Could not check existence of relationship {} - {} - {} on database {}. Reason is {}", out, name, in, getDatabaseName(), e.getMessage());
+		} finally {
+			metrics.stop(OPERATION.DB_EXIST_RELATION, start);
 		}
 		return null;
 	}
@@ -356,38 +873,293 @@ public class DB {
 	 * @param attributes
 	 * @return The edge representing the relation created. Null if can't create it.
 	 */
-	public Edge createRelation (Vertex inNode, Vertex outNode, String name, HashMap<String, ?> attributes){
+	public Edge createRelation (final Vertex inNode, final Vertex outNode, final String name, final HashMap<String, ?> attributes){
+		long start = metrics.start();
 		try{
+			if (isNativeWrites()) {
+				return retry("createRelation", new RetryPolicy.Action<Edge>() {
+					@Override
+					public Edge run(int attempt) throws Exception {
+						return addEdge(inNode, outNode, name, attributes);
+					}
+				});
+			}
+
 			String mapAsJson = null;
 			String query = null;
 			if (attributes!=null) {
 				// add pk to the attributes hashmap
 				mapAsJson = json.writeValueAsString(attributes);
-				query = "CREATE EDGE " + name + " FROM "+outNode.getId()+" TO "+inNode.getId() +" CONTENT " + mapAsJson + " RETRY 3 WAIT 1";
+				query = "CREATE EDGE " + name + " FROM "+outNode.getId()+" TO "+inNode.getId() +" CONTENT " + mapAsJson;
 			} else {
-				query = "CREATE EDGE " + name + " FROM "+outNode.getId()+" TO "+inNode.getId() + " RETRY 3 WAIT 1";
+				query = "CREATE EDGE " + name + " FROM "+outNode.getId()+" TO "+inNode.getId();
 			}
 
-			OCommandSQL sql = new OCommandSQL(query);
-			OrientDynaElementIterable result = getTinkerpopInstance().command(sql).execute();
-			return (Edge) result.iterator().next();
+			final OCommandSQL sql = new OCommandSQL(query);
+			return retry("createRelation", new RetryPolicy.Action<Edge>() {
+				@Override
+				public Edge run(int attempt) throws Exception {
+					OrientDynaElementIterable result = getTinkerpopInstance().command(sql).execute();
+					return (Edge) result.iterator().next();
+				}
+			});
 
 		} catch (ORecordDuplicatedException e) {
+			metrics.error(OPERATION.DB_CREATE_RELATION);
 			log.error("Could not create relationship {} - {} - {} on database. Reason is {}", inNode.getId(), name, outNode.getId(), getDatabaseName(), "DUPLICATED EDGE");
 		} catch (Exception e) {
+			metrics.error(OPERATION.DB_CREATE_RELATION);
 			log.error("Could not create relationship {} - {} - {} on database. Reason is {}", inNode.getId(), name, outNode.getId(), getDatabaseName(), e.getMessage());
+		} finally {
+			metrics.stop(OPERATION.DB_CREATE_RELATION, start);
 		}
 		return null;
 	}
 
-	public Edge createRelation (Pk in, Pk out, String name, HashMap<String, ?> attributes) throws Exception {
-		// add pk to the attributes hashmap
-		String mapAsJson = json.writeValueAsString(attributes);
+	/**
+	 * Create a relation between two nodes of any class given their Pks
+	 * @param in
+	 * @param out
+	 * @param name
+	 * @param attributes
+	 * @return
+	 * @throws Exception if any node does not exist or the relation can't be created
+	 */
+	public Edge createRelation (final Pk in, final Pk out, final String name, final HashMap<String, ?> attributes) throws Exception {
+		long start = metrics.start();
+		try {
+			if (isNativeWrites()) {
+				return retry("createRelation", new RetryPolicy.Action<Edge>() {
+					@Override
+					public Edge run(int attempt) throws Exception {
+						Vertex inNode = existNode(in);
+						Vertex outNode = existNode(out);
+						if (inNode == null || outNode == null) {
+							throw new IllegalArgumentException("Node " + (inNode == null ? in : out) + " not found");
+						}
+						return addEdge(inNode, outNode, name, attributes);
+					}
+				});
+			}
+
+			// add pk to the attributes hashmap
+			String mapAsJson = json.writeValueAsString(attributes);
+
+			String query = "CREATE EDGE " + name + " FROM (SELECT FROM V WHERE " + out.toQuery() + ") TO (SELECT FROM V WHERE " + in.toQuery() + ") CONTENT " + mapAsJson;
+			final OCommandSQL sql = new OCommandSQL(query);
+			return retry("createRelation", new RetryPolicy.Action<Edge>() {
+				@Override
+				public Edge run(int attempt) throws Exception {
+					OrientDynaElementIterable result = getTinkerpopInstance().command(sql).execute();
+					return (Edge) result.iterator().next();
+				}
+			});
+		} catch (Exception e) {
+			metrics.error(OPERATION.DB_CREATE_RELATION);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_CREATE_RELATION, start);
+		}
+	}
+
+	/**
+	 * Adds an edge from the out node to the in node, setting its attributes on the new record before it is saved
+	 * @param inNode
+	 * @param outNode
+	 * @param name
+	 * @param attributes
+	 * @return
+	 */
+	private Edge addEdge (Vertex inNode, Vertex outNode, String name, HashMap<String, ?> attributes) {
+		Long fingerprint = fingerprint(attributes);
+		if (fingerprint != null) {
+			HashMap<String, Object> fields = new HashMap<String, Object>(attributes);
+			fields.put(getFingerprintField(), fingerprint);
+			attributes = fields;
+		}
+		Object[] fields = attributes != null ? new Object[] { attributes } : new Object[0];
+		return ((OrientVertex) outNode).addEdge(name, (OrientVertex) inNode, fields);
+	}
+
+	/**
+	 * Creates every relation of the stream looking up its vertices by pk in any class, in batches of DEFAULT_BATCH_SIZE relations
+	 * @param relations
+	 * @return
+	 */
+	public BatchResult<RelationEntry> createRelations(Iterable<RelationEntry> relations) {
+		return createRelations(relations, "V", DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates every relation of the stream through the graph api. The pks of the vertices are resolved to rids with a
+	 * single query per batch and kept in a bounded cache, so vertices shared by many relations are looked up only once.
+	 * Every batch is committed on a transactional connection. A relation whose vertices can not be found or written
+	 * is reported in the result and does not abort the load
+	 * @param relations
+	 * @param vertexClass class where the vertices are looked up
+	 * @param batchSize
+	 * @return
+	 */
+	public BatchResult<RelationEntry> createRelations(Iterable<RelationEntry> relations, String vertexClass, int batchSize) {
+		long start = metrics.start();
+		try {
+			checkWritable();
+			BatchResult<RelationEntry> result = new BatchResult<RelationEntry>();
+			LRUCache<String, ORID> rids = new LRUCache<String, ORID>(RID_CACHE_SIZE);
+			List<RelationEntry> batch = new ArrayList<RelationEntry>(batchSize);
+			for (RelationEntry relation : relations) {
+				batch.add(relation);
+				if (batch.size() >= batchSize) {
+					createRelationBatch(batch, vertexClass, rids, result);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				createRelationBatch(batch, vertexClass, rids, result);
+			}
+			return result;
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_CREATE_RELATIONS);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_CREATE_RELATIONS, start);
+		}
+	}
+
+	/**
+	 * Creates a batch of relations, resolving first the pks not found in the rid cache
+	 * @param batch
+	 * @param vertexClass
+	 * @param rids
+	 * @param result
+	 */
+	private void createRelationBatch(List<RelationEntry> batch, String vertexClass, LRUCache<String, ORID> rids, BatchResult<RelationEntry> result) {
+		long start = System.nanoTime();
+		resolveRids(batch, vertexClass, rids);
 
-		String query = "CREATE EDGE " + name + " FROM (SELECT FROM V WHERE " + out.toQuery() + ") TO (SELECT FROM V WHERE " + in.toQuery() + ") CONTENT " + mapAsJson + " RETRY 3 WAIT 1" ;
-		OCommandSQL sql = new OCommandSQL(query);
-		OrientDynaElementIterable result = getTinkerpopInstance().command(sql).execute();
-		return (Edge) result.iterator().next();
+		// vertices are loaded once per batch, as every new edge modifies both of them
+		Map<ORID, Vertex> vertices = new HashMap<ORID, Vertex>();
+		List<RelationEntry> created = new ArrayList<RelationEntry>();
+		for (RelationEntry relation : batch) {
+			try {
+				if (addRelation(relation, rids, vertices)) {
+					created.add(relation);
+				} else {
+					log.error("Could not create relationship {} on database {}. Reason is {}", relation, getDatabaseName(), "NODE NOT FOUND");
+					result.failed(relation);
+				}
+			} catch (Exception e) {
+				log.error("Could not create relationship {} on database {}. Reason is {}", relation, getDatabaseName(), e.getMessage());
+				result.failed(relation);
+			}
+		}
+
+		if (isTransactional()) {
+			try {
+				commit();
+			} catch (Exception e) {
+				log.warn("Could not commit batch of {} relationships on database {}, retrying one by one. Reason is {}", created.size(), getDatabaseName(), e.getMessage());
+				rollback();
+				created = createRelationsOneByOne(created, rids, result);
+			}
+		}
+		for (int i = 0; i < created.size(); i++) {
+			result.created();
+		}
+
+		long elapsed = System.nanoTime() - start;
+		result.batch(batch.size(), elapsed);
+		log.info("Batch of {} relationships processed in {} ms, {} created", batch.size(), elapsed / 1000000, created.size());
+	}
+
+	/**
+	 * Creates and commits each relation on its own, returning the ones that could be created
+	 * @param relations
+	 * @param rids
+	 * @param result
+	 * @return
+	 */
+	private List<RelationEntry> createRelationsOneByOne(List<RelationEntry> relations, final LRUCache<String, ORID> rids, BatchResult<RelationEntry> result) {
+		List<RelationEntry> created = new ArrayList<RelationEntry>();
+		for (final RelationEntry relation : relations) {
+			try {
+				inTransaction("createRelation", new RetryPolicy.Action<Boolean>() {
+					@Override
+					public Boolean run(int attempt) throws Exception {
+						return addRelation(relation, rids, new HashMap<ORID, Vertex>());
+					}
+				});
+				created.add(relation);
+			} catch (Exception e) {
+				log.error("Could not create relationship {} on database {}. Reason is {}", relation, getDatabaseName(), e.getMessage());
+				result.failed(relation);
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Adds the edge of a relation whose vertices have already been resolved. Returns false if any vertex is missing
+	 * @param relation
+	 * @param rids
+	 * @param vertices
+	 * @return
+	 */
+	private boolean addRelation(RelationEntry relation, LRUCache<String, ORID> rids, Map<ORID, Vertex> vertices) {
+		Vertex outNode = loadVertex(rids.get(relation.out.toString()), vertices);
+		Vertex inNode = loadVertex(rids.get(relation.in.toString()), vertices);
+		if (outNode == null || inNode == null) {
+			return false;
+		}
+
+		Edge edge = this.graphDB.addEdge(null, outNode, inNode, relation.name);
+		if (relation.attributes != null) {
+			for (String key : relation.attributes.keySet()) {
+				edge.setProperty(key, relation.attributes.get(key));
+			}
+		}
+		return true;
+	}
+
+	private Vertex loadVertex(ORID rid, Map<ORID, Vertex> vertices) {
+		if (rid == null) return null;
+		Vertex vertex = vertices.get(rid);
+		if (vertex == null) {
+			vertex = this.graphDB.getVertex(rid);
+			vertices.put(rid, vertex);
+		}
+		return vertex;
+	}
+
+	/**
+	 * Looks up the rids of the pks of a batch not found in the cache, with a single query per pk field
+	 * @param batch
+	 * @param vertexClass
+	 * @param rids
+	 */
+	private void resolveRids(List<RelationEntry> batch, String vertexClass, LRUCache<String, ORID> rids) {
+		Map<String, Set<Object>> missing = new HashMap<String, Set<Object>>();
+		for (RelationEntry relation : batch) {
+			for (Pk pk : new Pk[] { relation.out, relation.in }) {
+				if (rids.get(pk.toString()) == null) {
+					Set<Object> values = missing.get(pk.key);
+					if (values == null) {
+						values = new HashSet<Object>();
+						missing.put(pk.key, values);
+					}
+					values.add(pk.value);
+				}
+			}
+		}
+
+		for (Map.Entry<String, Set<Object>> entry : missing.entrySet()) {
+			OCommandSQL sql = queryCache.command(QueryCache.NODES_BY_KEYS, vertexClass, entry.getKey());
+			OrientDynaElementIterable vertices = this.graphDB.command(sql).execute(new ArrayList<Object>(entry.getValue()));
+			for (Object vertex : vertices) {
+				OrientVertex v = (OrientVertex) vertex;
+				rids.put(new Pk(entry.getKey(), v.getProperty(entry.getKey())).toString(), v.getIdentity());
+			}
+		}
 	}
 
 	/**
@@ -408,15 +1180,26 @@ public class DB {
 	 * @return
 	 */
 	public boolean relationHasChanged (Edge relation, HashMap<String, ?> attributes){
-		for (String key : attributes.keySet()){
-			String prop = relation.getProperty(key);
-			if (prop == null){
-				return true; //if the new attribute is new, it's a change
-			}else if (!prop.equals(attributes.get(key))){
-				return true; //if it's not equal, it's a change
+		long start = metrics.start();
+		try {
+			if (Fingerprint.matches(relation, attributes, getFingerprintField())) {
+				return false;
 			}
+			for (String key : attributes.keySet()){
+				String prop = relation.getProperty(key);
+				if (prop == null){
+					return true; //if the new attribute is new, it's a change
+				}else if (!prop.equals(attributes.get(key))){
+					return true; //if it's not equal, it's a change
+				}
+			}
+			return false;
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_RELATION_HAS_CHANGED);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_RELATION_HAS_CHANGED, start);
 		}
-		return false;
 	}
 
 	/**
@@ -427,17 +1210,25 @@ public class DB {
 	 * @return
 	 */
 	public boolean relationHasChanged (Edge relation, HashMap<String, ?> attributes, String...excluded){
-		for (String key : attributes.keySet()){
-			if (!Arrays.asList(excluded).contains(key)){    	
-				String prop = relation.getProperty(key).toString();
-				if (prop == null){
-					return true; //if the new attribute is new, it's a change
-				}else if (!prop.equals(attributes.get(key).toString())){
-					return true; //if it's not equal, it's a change
-				}				 
-			}			
+		long start = metrics.start();
+		try {
+			for (String key : attributes.keySet()){
+				if (!Arrays.asList(excluded).contains(key)){    	
+					String prop = relation.getProperty(key).toString();
+					if (prop == null){
+						return true; //if the new attribute is new, it's a change
+					}else if (!prop.equals(attributes.get(key).toString())){
+						return true; //if it's not equal, it's a change
+					}				 
+				}			
+			}
+			return false;
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_RELATION_HAS_CHANGED);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_RELATION_HAS_CHANGED, start);
 		}
-		return false;
 	}
 
 	/**
@@ -455,21 +1246,39 @@ public class DB {
 	 * @param attributes
 	 * @param clearIt
 	 */
-	public Edge relationUpdate (Edge relation, HashMap<String, ?> attributes, boolean clearIt){
+	public Edge relationUpdate (final Edge relation, final HashMap<String, ?> attributes, final boolean clearIt){
+		long start = metrics.start();
 		try {
-			if (clearIt){
-				for (String key : relation.getPropertyKeys()){
-					relation.removeProperty(key);
+			final Long fingerprint = fingerprint(attributes);
+			return retry("relationUpdate", new RetryPolicy.Action<Edge>() {
+				@Override
+				public Edge run(int attempt) throws Exception {
+					if (attempt > 1) {
+						reload(relation);
+					}
+					if (!clearIt && isUnchanged(relation, fingerprint)) {
+						return relation;
+					}
+					if (clearIt){
+						for (String key : relation.getPropertyKeys()){
+							relation.removeProperty(key);
+						}
+					}
+					for (String key : attributes.keySet()){
+						relation.setProperty(key, attributes.get(key));
+					}
+					if (fingerprint != null) {
+						relation.setProperty(getFingerprintField(), fingerprint);
+					}
+					return relation;
 				}
-			}
-			for (String key : attributes.keySet()){
-				relation.setProperty(key, attributes.get(key));
-			}
-
-			return relation;
+			});
 		} catch (Exception e) {
+			metrics.error(OPERATION.DB_RELATION_UPDATE);
 			log.error("Could update relationship {} on database {}. Reason is {}", relation.getId(), getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.DB_RELATION_UPDATE, start);
 		}
 	}
 
@@ -482,9 +1291,7 @@ public class DB {
 	 */
 	public int relationDrop (Pk in, Pk out, String relationClass) {
 		String query = "DELETE EDGE " + relationClass + " FROM (SELECT FROM V WHERE " + out.toQuery() + ") TO (SELECT FROM V WHERE " + in.toQuery() + ")" ;
-		OCommandSQL sql = new OCommandSQL(query);
-		Integer removed = getTinkerpopInstance().command(sql).execute();
-		return removed;
+		return relationDrop(new OCommandSQL(query));
 	}
 
 	/**
@@ -496,9 +1303,102 @@ public class DB {
 	 */
 	public int relationDrop (Vertex in, Vertex out, String relationClass) {
 		String query = "DELETE EDGE " + relationClass + " FROM "+out.getId()+" TO " + in.getId();
-		OCommandSQL sql = new OCommandSQL(query);
-		Integer removed = getTinkerpopInstance().command(sql).execute();
-		return removed;
+		return relationDrop(new OCommandSQL(query));
+	}
+
+	/**
+	 * Runs a DELETE EDGE command, retrying it on conflicts
+	 * @param sql
+	 * @return
+	 */
+	private int relationDrop (final OCommandSQL sql) {
+		long start = metrics.start();
+		try {
+			return retry("relationDrop", new RetryPolicy.Action<Integer>() {
+				@Override
+				public Integer run(int attempt) throws Exception {
+					return getTinkerpopInstance().command(sql).execute();
+				}
+			});
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_RELATION_DROP);
+			throw e;
+		} catch (Exception e) {
+			metrics.error(OPERATION.DB_RELATION_DROP);
+			throw new IllegalStateException(e);
+		} finally {
+			metrics.stop(OPERATION.DB_RELATION_DROP, start);
+		}
+	}
+
+	/**
+	 * Runs a unit of work with the retry policy of the database. On a transactional connection the action is committed,
+	 * and if the action or the commit fail the transaction is rolled back; on a conflict the whole action is replayed,
+	 * so it must look up again (or reload, see the attempt) the records it writes. On a non transactional connection
+	 * the action is retried the same way, without a transaction
+	 * @param operation name of the operation, used by the counters of the retry policy
+	 * @param action
+	 * @return
+	 * @throws Exception
+	 */
+	public <T> T inTransaction(String operation, final RetryPolicy.Action<T> action) throws Exception {
+		checkWritable();
+		if (!isTransactional()) {
+			return retryPolicy.execute(operation, action);
+		}
+		return retryPolicy.execute(operation, new RetryPolicy.Action<T>() {
+			@Override
+			public T run(int attempt) throws Exception {
+				try {
+					T result = action.run(attempt);
+					commit();
+					return result;
+				} catch (Exception e) {
+					rollback();
+					throw e;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a write with the retry policy of the database. On a transactional connection the write runs only once,
+	 * since conflicts are raised by the commit and the whole transaction has to be retried with inTransaction
+	 * @param operation
+	 * @param action
+	 * @return
+	 * @throws Exception
+	 */
+	<T> T retry(String operation, RetryPolicy.Action<T> action) throws Exception {
+		checkWritable();
+		if (isTransactional()) {
+			return action.run(1);
+		}
+		return retryPolicy.execute(operation, action);
+	}
+
+	/**
+	 * Reloads the last version of an element, discarding the stale one that caused a conflict
+	 * @param element
+	 */
+	static void reload(Element element) {
+		((OrientElement) element).reload();
+	}
+
+	/**
+	 * Returns the metrics of the operations of this connection
+	 * @return
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the retry policy applied to the writes of this connection
+	 * @return
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
 	}
 
 	/**
@@ -507,9 +1407,37 @@ public class DB {
 	 * @return
 	 */
 	public OrientDynaElementIterable executeQuery (String sqlQuery) throws Exception {
-		OCommandSQL sql = new OCommandSQL(sqlQuery);
-		OrientDynaElementIterable result = this.graphDB.command(sql).execute();
-		return result;
+		long start = metrics.start();
+		long begin = slowQueryLog != null ? System.nanoTime() : 0;
+		try {
+			if (readOnly && !READ_COMMAND.matcher(sqlQuery).find()) {
+				checkWritable();
+			}
+			OCommandSQL sql = new OCommandSQL(sqlQuery);
+			OrientDynaElementIterable result = this.graphDB.command(sql).execute();
+			if (slowQueryLog != null) {
+				long elapsed = System.nanoTime() - begin;
+				if (slowQueryLog.isSlow(elapsed)) {
+					// the rows are already fetched, copying them is the only way to count them without consuming the result
+					List<Object> rows = new ArrayList<Object>();
+					for (Object row : result) {
+						rows.add(row);
+					}
+					slowQueryLog.record(this.graphDB.getRawGraph(), sqlQuery, elapsed, rows.size());
+					return new OrientDynaElementIterable(this.graphDB, rows);
+				}
+			}
+			return result;
+		} catch (Exception e) {
+			metrics.error(OPERATION.DB_EXECUTE_QUERY);
+			throw e;
+		} finally {
+			// schema commands return no elements and fail the cast of the result, but they have run
+			if (SCHEMA_COMMAND.matcher(sqlQuery).find()) {
+				schemaCache.invalidate();
+			}
+			metrics.stop(OPERATION.DB_EXECUTE_QUERY, start);
+		}
 	}
 
 	/**
@@ -525,17 +1453,53 @@ public class DB {
 		return existClass(className, pKey, false);
 	}
 
+	/**
+	 * Drops a node or relation class. Its nodes or relations must have been removed before
+	 * @param className
+	 * @return boolean if the class has been dropped
+	 */
+	public boolean dropClass(String className){
+		long start = metrics.start();
+		try {
+			checkWritable();
+			OClass oClass = graphDB.getRawGraph().getMetadata().getSchema().getClass(className);
+			if (oClass == null) {
+				return false;
+			}
+			if (oClass.isSubClassOf(OrientEdgeType.CLASS_NAME)) {
+				graphDB.dropEdgeType(className);
+			} else {
+				graphDB.dropVertexType(className);
+			}
+			return true;
+		} catch (Exception e) {
+			metrics.error(OPERATION.DB_DROP_CLASS);
+			log.error("Could not drop class {} on database {}. Reason is {}", className, getDatabaseName(), e.getMessage());
+			return false;
+		} finally {
+			schemaCache.invalidate(className);
+			if (database != null) {
+				database.clearPkCache(className);
+			}
+			metrics.stop(OPERATION.DB_DROP_CLASS, start);
+		}
+	}
+
 	/**
 	 * Returns the node represented by de rid 
 	 * @param rid
 	 * @return
 	 */
 	public Vertex getNode(String rid){
+		long start = metrics.start();
 		try {
 			return graphDB.getVertex(rid);
 		} catch (Exception e) {
+			metrics.error(OPERATION.DB_GET_NODE);
 			log.error("Could not find node with @rid = {} on database {}. Reason is {}", rid, getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.DB_GET_NODE, start);
 		}
 	}
 
@@ -562,4 +1526,28 @@ public class DB {
 	public OrientGraphFactory getFactory() {
 		return factory;
 	}
+
+	/**
+	 * Returns the pooled database this connection belongs to, or null if it was created directly from a factory
+	 * @return
+	 */
+	public ODatabase getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Returns the cache of parameterized statements used by this connection
+	 * @return
+	 */
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Returns the classes and indexes known to exist, shared by every connection of the database
+	 * @return
+	 */
+	public SchemaCache getSchemaCache() {
+		return schemaCache;
+	}
 }
@@ -0,0 +1,144 @@
+package fs.orientdb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fs.orientdb.constants.OPERATION;
+
+/**
+ * Metrics registry keeping a latency histogram per operation, also exposed as a MXBean
+ * @author alonsod86
+ *
+ */
+public class DefaultMetricsRegistry implements MetricsRegistry, MetricsMXBean {
+	static Logger log = LoggerFactory.getLogger(DefaultMetricsRegistry.class.getSimpleName());
+
+	/** Domain of the MXBeans registered by the databases */
+	public static final String JMX_DOMAIN = "fs.orientdb";
+
+	private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+	// Name this registry is published with on JMX, null if it is not
+	private ObjectName objectName;
+
+	@Override
+	public long start() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public void stop(OPERATION operation, long start) {
+		histogram(operation.toString()).record(System.nanoTime() - start);
+	}
+
+	@Override
+	public void error(OPERATION operation) {
+		histogram(operation.toString()).error();
+	}
+
+	@Override
+	public void registerGauge(String name, LongSupplier gauge) {
+		gauges.put(name, gauge);
+	}
+
+	@Override
+	public List<OperationStats> getOperations() {
+		List<OperationStats> operations = new ArrayList<OperationStats>(histograms.size());
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			operations.add(new OperationStats(entry.getKey(), entry.getValue()));
+		}
+		Collections.sort(operations, new Comparator<OperationStats>() {
+			@Override
+			public int compare(OperationStats a, OperationStats b) {
+				return a.getOperation().compareTo(b.getOperation());
+			}
+		});
+		return operations;
+	}
+
+	/**
+	 * Returns the histogram of an operation, or null if it has not been executed
+	 * @param operation
+	 * @return
+	 */
+	public LatencyHistogram getHistogram(String operation) {
+		return histograms.get(operation);
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+			try {
+				values.put(entry.getKey(), entry.getValue().getAsLong());
+			} catch (Exception e) {
+				log.warn("Could not read gauge {}. Reason is {}", entry.getKey(), e.getMessage());
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : histograms.values()) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Publishes this registry on the platform MBean server as fs.orientdb:type=Metrics,name=database
+	 * @param database
+	 */
+	public void registerMBean(String database) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(database));
+			if (server.isRegistered(name)) {
+				log.warn("Metrics of database {} already published on JMX by another instance", database);
+				return;
+			}
+			server.registerMBean(this, name);
+			this.objectName = name;
+		} catch (Exception e) {
+			log.error("Could not publish metrics of database {} on JMX. Reason is {}", database, e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes this registry from the platform MBean server
+	 */
+	public void unregisterMBean() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				log.warn("Could not remove metrics {} from JMX. Reason is {}", objectName, e.getMessage());
+			}
+			objectName = null;
+		}
+	}
+
+	private LatencyHistogram histogram(String operation) {
+		LatencyHistogram histogram = histograms.get(operation);
+		if (histogram == null) {
+			LatencyHistogram newHistogram = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(operation, newHistogram);
+			if (histogram == null) histogram = newHistogram;
+		}
+		return histogram;
+	}
+}
@@ -0,0 +1,70 @@
+package fs.orientdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.tinkerpop.blueprints.Element;
+
+/**
+ * Compact hash of the attributes written to an element. Stored along the attributes, it tells if a later write
+ * carries the same content without comparing every field of the record. Values are compared by their type and their
+ * string form, so "1" and 1, or "null" and null, differ. The order of the attributes does not matter.
+ * @author alonsod86
+ *
+ */
+public class Fingerprint {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private Fingerprint() {}
+
+	/**
+	 * Returns the 64 bit FNV-1a hash of the attributes, ignoring the given field
+	 * @param attributes
+	 * @param ignored field where the fingerprint itself is stored
+	 * @return
+	 */
+	public static long of(Map<String, ?> attributes, String ignored) {
+		List<String> keys = new ArrayList<String>(attributes.keySet());
+		Collections.sort(keys);
+		long hash = FNV_OFFSET;
+		for (String key : keys) {
+			if (key.equals(ignored)) continue;
+			Object value = attributes.get(key);
+			hash = hash(hash, key);
+			// null has no type, the empty name can not be taken by any class
+			hash = hash(hash, value != null ? value.getClass().getName() : "");
+			hash = hash(hash, String.valueOf(value));
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns true if the element was last written with the same attributes, so they do not change it. False proves
+	 * nothing: the attributes may still be a subset of its content, which only comparing its fields tells
+	 * @param element
+	 * @param attributes
+	 * @param field field where the fingerprint is stored, null if fingerprints are disabled
+	 * @return
+	 */
+	public static boolean matches(Element element, Map<String, ?> attributes, String field) {
+		if (field == null || attributes == null) {
+			return false;
+		}
+		return Long.valueOf(of(attributes, field)).equals(element.getProperty(field));
+	}
+
+	private static long hash(long hash, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		// separator, so "ab" + "c" and "a" + "bc" differ
+		hash ^= 0xff;
+		hash *= FNV_PRIME;
+		return hash;
+	}
+}
@@ -1,6 +1,15 @@
 package fs.orientdb;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,11 +38,26 @@ public class GraphInterface {
 	/**  merges the changes */
 	public static final String CONFLIC_STRATEGY_AUTOMERGE = "automerge";
 
+	/** Consecutive failed probes of a server before its pools are moved to a healthy one */
+	public static final int FAILOVER_PROBES = 2;
+
 	// Instance configuration for graph database
 	private OrientConfiguration config = new OrientConfiguration();
 
 	// Contains last active url to an Orientdb instance
-	private String activeConnectionUrl;
+	private volatile String activeConnectionUrl;
+
+	// Pooled factories already built, one per database name
+	private final ConcurrentHashMap<String, ODatabase> factories = new ConcurrentHashMap<String, ODatabase>();
+
+	// Factories moved to another server, closed once their borrowed connections are back
+	private final Set<ODatabase> retired = Collections.newSetFromMap(new ConcurrentHashMap<ODatabase, Boolean>());
+
+	// Background task closing the factories that have been idle for too long
+	private ScheduledExecutorService evictor;
+
+	// Background probes of the servers of a remote configuration (null until first needed or if disabled)
+	private volatile HealthChecker healthChecker;
 
 	/**
 	 * Instantiate an OrientDB graph database using configuration class
@@ -119,10 +143,9 @@ public class GraphInterface {
 			factory.setConflictStrategy(strategy);
 		}
 
-		// create factory for the database
-		return new DB(new OrientGraphFactory(this.config.getDatabaseType() + ":" +
-				finalURL + "/" + database)
-		.setupPool(this.config.getMinPool(), this.config.getMaxPool()), false);
+		// pooled factory for the database
+		if (this.activeConnectionUrl==null) this.activeConnectionUrl = finalURL;
+		return getOFactory(database).getDB();
 	}
 
 	/**
@@ -130,7 +153,13 @@ public class GraphInterface {
 	 * @throws IOException
 	 */
 	public void dropDatabase(String database) throws IOException {
-		if (this.activeConnectionUrl==null) this.activeConnectionUrl = getActiveServerUrl(this.config);
+		selectActiveUrl();
+
+		// the pool of a dropped database can not be reused
+		ODatabase factory = this.factories.remove(database);
+		if (factory!=null) {
+			factory.close();
+		}
 
 		// ensure the existence of the database requested
 		if (this.config.getDatabaseType().equals(OrientConfiguration.DATABASE_REMOTE)) {
@@ -160,7 +189,7 @@ public class GraphInterface {
      * @throws IOException
      */
     public boolean existsDatabase(String database) throws IOException {
-    	if (this.activeConnectionUrl==null) this.activeConnectionUrl = getActiveServerUrl(this.config);
+    	selectActiveUrl();
     	// ensure the existence of the database requested
         if (this.config.getDatabaseType().equals(OrientConfiguration.DATABASE_REMOTE)) {
             OServerAdmin remoteServer = getOServer();
@@ -186,27 +215,7 @@ public class GraphInterface {
 	 * @throws IOException
 	 */
 	public OServerAdmin getOServer() throws IOException {
-		if (this.activeConnectionUrl==null) this.activeConnectionUrl = getActiveServerUrl(this.config);
-
-		OServerAdmin remoteServer = new OServerAdmin(this.config.getDatabaseType() + ":" + this.activeConnectionUrl);
-		if (this.config.getUsername()!=null && this.config.getPassword()!=null) {
-			try {
-				// try to connect. If failure check other urls in cluster
-				remoteServer.connect(this.config.getUsername(), this.config.getPassword());
-			} catch (OIOException oe) {
-				// retry connection just in case one shard is down
-				String url = getActiveServerUrl(this.config);
-				remoteServer = new OServerAdmin(this.config.getDatabaseType() + ":" + url);
-				try {
-					remoteServer.connect(this.config.getUsername(), this.config.getPassword());
-					this.activeConnectionUrl = url;
-				} catch (Exception e) {
-					log.error("Could not get active connection after {} retries. Aborting", this.config.getUrls().length);
-				}
-			}
-		}
-
-		return remoteServer;
+		return connectServer("");
 	}
 	
 	/**
@@ -215,17 +224,34 @@ public class GraphInterface {
 	 * @throws IOException
 	 */
 	public OServerAdmin getOServer(String database) throws IOException {
-		if (this.activeConnectionUrl==null) this.activeConnectionUrl = getActiveServerUrl(this.config);
+		return connectServer("/" + database);
+	}
+
+	/**
+	 * Connects to the admin server of the active url, retrying once with another url if it is down
+	 * @param path appended to the url of the server
+	 * @return
+	 * @throws IOException
+	 */
+	private OServerAdmin connectServer(String path) throws IOException {
+		selectActiveUrl();
 
-		OServerAdmin remoteServer = new OServerAdmin(this.config.getDatabaseType() + ":" + this.activeConnectionUrl + "/" + database);
+		String activeUrl = this.activeConnectionUrl;
+		OServerAdmin remoteServer = new OServerAdmin(this.config.getDatabaseType() + ":" + activeUrl + path);
 		if (this.config.getUsername()!=null && this.config.getPassword()!=null) {
 			try {
 				// try to connect. If failure check other urls in cluster
 				remoteServer.connect(this.config.getUsername(), this.config.getPassword());
 			} catch (OIOException oe) {
 				// retry connection just in case one shard is down
+				HealthChecker checker = this.healthChecker;
+				if (checker!=null) checker.markDown(activeUrl);
 				String url = getActiveServerUrl(this.config);
-				remoteServer = new OServerAdmin(this.config.getDatabaseType() + ":" + url);
+				if (url==null) {
+					log.error("Could not get active connection, every server is down. Aborting");
+					throw oe;
+				}
+				remoteServer = new OServerAdmin(this.config.getDatabaseType() + ":" + url + path);
 				try {
 					remoteServer.connect(this.config.getUsername(), this.config.getPassword());
 					this.activeConnectionUrl = url;
@@ -238,12 +264,55 @@ public class GraphInterface {
 		return remoteServer;
 	}
 
+	/**
+	 * Sets the url used by new connections if there is none yet, or if the health checker found it down
+	 */
+	private void selectActiveUrl() {
+		HealthChecker checker = getHealthChecker();
+		if (this.activeConnectionUrl==null || (checker!=null && !checker.getHealthyUrls().contains(this.activeConnectionUrl))) {
+			String url = getActiveServerUrl(this.config);
+			if (url!=null || this.activeConnectionUrl==null) this.activeConnectionUrl = url;
+		}
+	}
+
+	/**
+	 * Returns the background health checker of the servers, starting it on first use. Null unless the database is
+	 * remote and a health check interval is configured
+	 * @return
+	 */
+	public HealthChecker getHealthChecker() {
+		Long interval = this.config.getHealthCheckInterval();
+		if (!OrientConfiguration.DATABASE_REMOTE.equals(this.config.getDatabaseType()) || interval==null || interval<=0) {
+			return null;
+		}
+		if (this.healthChecker==null) {
+			synchronized (this) {
+				if (this.healthChecker==null) {
+					HealthChecker checker = new HealthChecker(this.config);
+					checker.start();
+					this.healthChecker = checker;
+				}
+			}
+		}
+		return this.healthChecker;
+	}
+
 	/**
 	 * Iterates over every connection available to find an active one
 	 * @return
 	 * @throws IOException
 	 */
 	private String getActiveServerUrl(OrientConfiguration config) {
+		// servers already probed in background, take the fastest healthy one
+		HealthChecker checker = getHealthChecker();
+		if (checker!=null) {
+			String url = checker.getHealthyUrl();
+			if (url==null) {
+				log.error("No active connection, every server is down: {}", checker.getServers());
+			}
+			return url;
+		}
+
 		String[] urls = config.getUrls();
 		for (String url : urls) {
 			OServerAdmin remoteServer = null;
@@ -275,25 +344,174 @@ public class GraphInterface {
 	}
 
 	/**
-	 * Returns an OrientGraphFactory instance for the given database
+	 * Returns a new pooled factory for the given database on the active url
 	 * @param database
 	 * @return
 	 */
-	private OrientGraphFactory buildFactory(String database) {
-		if (this.activeConnectionUrl==null) this.activeConnectionUrl = getActiveServerUrl(this.config);
+	private ODatabase buildFactory(String database) {
+		selectActiveUrl();
 
-		return new OrientGraphFactory(this.config.getDatabaseType() + ":" +
-				this.activeConnectionUrl + "/" + database)
+		String url = this.activeConnectionUrl;
+		OrientGraphFactory factory = new OrientGraphFactory(this.config.getDatabaseType() + ":" + url + "/" + database)
 		.setupPool(this.config.getMinPool(), this.config.getMaxPool());
+		return new ODatabase(factory, this, database, url);
 	}
 
 	/**
-	 * Returns an instance to the database factory
+	 * Returns true if the server of the factory has failed FAILOVER_PROBES probes in a row while another one is healthy,
+	 * so the factory must be built again on a healthy server
+	 * @param factory
+	 * @return
+	 */
+	private boolean isStale(ODatabase factory) {
+		HealthChecker checker = this.healthChecker;
+		return checker!=null && factory.getUrl()!=null && checker.getFailures(factory.getUrl())>=FAILOVER_PROBES && checker.getHealthyUrl()!=null;
+	}
+
+	/**
+	 * Closes the retired factories whose borrowed connections are all back
+	 */
+	private void closeRetiredFactories() {
+		for (ODatabase factory : this.retired) {
+			if (factory.isIdle() && this.retired.remove(factory)) {
+				try {
+					factory.close();
+					log.info("Closed factory of database {} on server {}", factory.getName(), factory.getUrl());
+				} catch (Exception e) {
+					log.error("Could not close factory of database {} on server {}. Reason is {}", factory.getName(), factory.getUrl(), e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns an instance to the database factory. Factories are built once per database and shared,
+	 * so every caller gets connections from the same pool
 	 * @param database
 	 * @return
 	 */
 	public ODatabase getOFactory(String database) {
-		return new ODatabase(buildFactory(database), this);
+		if (!this.retired.isEmpty()) {
+			closeRetiredFactories();
+		}
+		while (true) {
+			ODatabase factory = this.factories.get(database);
+			CountDownLatch warmUp = null;
+			if (factory==null || factory.isClosed() || isStale(factory)) {
+				synchronized (this.factories) {
+					factory = this.factories.get(database);
+					if (factory!=null && !factory.isClosed() && isStale(factory)) {
+						// its server is down, new connections go to a healthy one and the borrowed ones finish
+						log.warn("Server {} of database {} is down, moving its pool to a healthy server", factory.getUrl(), database);
+						this.factories.remove(database, factory);
+						factory.retire();
+						this.retired.add(factory);
+						factory = null;
+					}
+					if (factory==null || factory.isClosed()) {
+						factory = buildFactory(database);
+						// its connections wait for the warm up, so no request gets a cold pool
+						if (Boolean.TRUE.equals(this.config.getWarmUp())) {
+							warmUp = factory.holdConnections();
+						}
+						this.factories.put(database, factory);
+						startEvictor();
+					}
+				}
+			}
+			// out of the lock, so the other databases are not blocked by this warm up
+			if (warmUp != null) {
+				factory.warmUp(warmUp, this.config.getWarmUpClasses());
+			}
+			factory.touch();
+			// the evictor may have closed it before the touch, take a new one
+			if (!factory.isClosed() && !factory.isRetired()) {
+				return factory;
+			}
+		}
+	}
+
+	/**
+	 * Closes every pooled factory created by this interface. Factories requested after this call will be created again
+	 */
+	public void shutdown() {
+		synchronized (this.factories) {
+			if (this.evictor!=null) {
+				this.evictor.shutdownNow();
+				this.evictor = null;
+			}
+			for (ODatabase factory : this.factories.values()) {
+				factory.close();
+			}
+			this.factories.clear();
+			for (ODatabase factory : this.retired) {
+				factory.close();
+			}
+			this.retired.clear();
+		}
+		synchronized (this) {
+			if (this.healthChecker!=null) {
+				this.healthChecker.close();
+				this.healthChecker = null;
+			}
+		}
+	}
+
+	/**
+	 * Starts the background eviction of idle factories, if configured and not running yet
+	 */
+	private void startEvictor() {
+		final Long timeout = this.config.getFactoryIdleTimeout();
+		if (this.evictor!=null || timeout==null || timeout<=0) return;
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "orientdb-factory-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(timeout / 2, 1000);
+		this.evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdleFactories(timeout);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes the factories not used during the given time and with every connection returned to the pool
+	 * @param timeout
+	 */
+	private void evictIdleFactories(long timeout) {
+		closeRetiredFactories();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, ODatabase> entry : this.factories.entrySet()) {
+			ODatabase factory = entry.getValue();
+			if (now - factory.getLastAccess() > timeout && factory.isIdle()) {
+				synchronized (this.factories) {
+					// checked again, as it may have been handed out meanwhile
+					if (System.currentTimeMillis() - factory.getLastAccess() > timeout && this.factories.remove(entry.getKey(), factory)) {
+						try {
+							factory.close();
+							log.info("Closed idle factory for database {}", entry.getKey());
+						} catch (Exception e) {
+							log.error("Could not close idle factory for database {}. Reason is {}", entry.getKey(), e.getMessage());
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the configuration used by this interface
+	 * @return
+	 */
+	public OrientConfiguration getConfig() {
+		return config;
 	}
 
 	/**
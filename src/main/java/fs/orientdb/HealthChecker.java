@@ -0,0 +1,291 @@
+package fs.orientdb;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.client.remote.OServerAdmin;
+
+/**
+ * Probes every server of a multi url configuration in parallel on an interval, keeping the healthy ones ranked by
+ * the latency of their last probe. Connection paths take the best healthy url instantly instead of trying the urls
+ * one after another and waiting for the timeout of every server that is down.
+ * @author alonsod86
+ *
+ */
+public class HealthChecker implements Closeable {
+	static Logger log = LoggerFactory.getLogger(HealthChecker.class.getSimpleName());
+
+	/** Max millis a probe may take before its server is considered down */
+	public static final long DEFAULT_TIMEOUT = 2000;
+
+	/** Port of the binary protocol, probed when the url does not give one */
+	public static final int DEFAULT_PORT = 2424;
+
+	/**
+	 * Check of a server, failing with an exception if it is not available
+	 */
+	public interface Probe {
+		void probe(String url) throws Exception;
+	}
+
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	private final String[] urls;
+	private final long interval;
+	private final long timeout;
+	private final Probe probe;
+
+	// Result of the last probe of every server
+	private final ConcurrentHashMap<String, ServerHealth> servers = new ConcurrentHashMap<String, ServerHealth>();
+	// Healthy urls, the fastest first
+	private volatile List<String> ranking = Collections.emptyList();
+
+	private ScheduledExecutorService scheduler;
+	private ExecutorService probes;
+
+	/**
+	 * Health checker of the urls of a configuration, probing them with its credentials
+	 * @param config
+	 */
+	public HealthChecker(OrientConfiguration config) {
+		this(config.getUrls(), config.getHealthCheckInterval(), config.getHealthCheckTimeout(), defaultProbe(config));
+	}
+
+	public HealthChecker(String[] urls, long interval, long timeout, Probe probe) {
+		this.urls = urls;
+		this.interval = interval;
+		this.timeout = timeout;
+		this.probe = probe;
+	}
+
+	/**
+	 * Probes every server once, so the ranking is ready when this returns, and schedules the next rounds
+	 */
+	public synchronized void start() {
+		if (scheduler != null) return;
+
+		final String prefix = "orientdb-health-" + instances.incrementAndGet();
+		probes = Executors.newCachedThreadPool(daemonThreads(prefix + "-probe-"));
+		scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads(prefix + "-scheduler-"));
+		check();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					check();
+				} catch (Exception e) {
+					log.error("Could not check the health of servers {}. Reason is {}", ranking, e.getMessage());
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops probing the servers
+	 */
+	@Override
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			probes.shutdownNow();
+			scheduler = null;
+			probes = null;
+		}
+	}
+
+	/**
+	 * Probes every server in parallel, waiting at most the timeout for all of them, and ranks the healthy ones
+	 */
+	public void check() {
+		ExecutorService executor = probes;
+		if (executor == null) return;
+
+		Map<String, Future<Long>> results = new LinkedHashMap<String, Future<Long>>();
+		for (final String url : urls) {
+			results.put(url, executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long start = System.nanoTime();
+					probe.probe(url);
+					return System.nanoTime() - start;
+				}
+			}));
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		for (Map.Entry<String, Future<Long>> result : results.entrySet()) {
+			String url = result.getKey();
+			try {
+				long latency = result.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				update(url, true, latency / 1000, null);
+			} catch (TimeoutException e) {
+				result.getValue().cancel(true);
+				update(url, false, 0, "no answer in " + timeout + " ms");
+			} catch (ExecutionException e) {
+				update(url, false, 0, String.valueOf(e.getCause().getMessage()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		rank();
+	}
+
+	/**
+	 * Takes a server out of the ranking until a probe finds it healthy again, as a connection to it just failed
+	 * @param url
+	 */
+	public void markDown(String url) {
+		if (url == null) return;
+		update(url, false, 0, "connection failed");
+		rank();
+	}
+
+	/**
+	 * Returns the healthy url with the lowest latency, null if every server is down
+	 * @return
+	 */
+	public String getHealthyUrl() {
+		List<String> healthy = ranking;
+		return healthy.isEmpty() ? null : healthy.get(0);
+	}
+
+	/**
+	 * Returns true if the last probe of the server was successful
+	 * @param url
+	 * @return
+	 */
+	public boolean isHealthy(String url) {
+		return ranking.contains(url);
+	}
+
+	/**
+	 * Returns the number of consecutive failed probes of the server, 0 if it is healthy or has not been probed
+	 * @param url
+	 * @return
+	 */
+	public int getFailures(String url) {
+		ServerHealth health = servers.get(url);
+		return health != null ? health.getFailures() : 0;
+	}
+
+	/**
+	 * Returns the healthy urls, the fastest first
+	 * @return
+	 */
+	public List<String> getHealthyUrls() {
+		return ranking;
+	}
+
+	/**
+	 * Returns the last probe of every server, healthy ones first and ranked by latency
+	 * @return
+	 */
+	public List<ServerHealth> getServers() {
+		List<ServerHealth> list = new ArrayList<ServerHealth>(servers.values());
+		Collections.sort(list, RANKING);
+		return list;
+	}
+
+	private void update(String url, boolean healthy, long latencyMicros, String error) {
+		ServerHealth previous = servers.get(url);
+		int failures = healthy ? 0 : (previous != null ? previous.getFailures() : 0) + 1;
+		servers.put(url, new ServerHealth(url, healthy, latencyMicros, System.currentTimeMillis(), failures, error));
+
+		if (previous == null || previous.isHealthy() != healthy) {
+			if (healthy) {
+				log.info("Server {} is up, answering in {} us", url, latencyMicros);
+			} else {
+				log.warn("Server {} is down. Reason is {}", url, error);
+			}
+		}
+	}
+
+	private void rank() {
+		List<String> healthy = new ArrayList<String>();
+		for (ServerHealth server : getServers()) {
+			if (server.isHealthy()) {
+				healthy.add(server.getUrl());
+			}
+		}
+		ranking = Collections.unmodifiableList(healthy);
+	}
+
+	private static final Comparator<ServerHealth> RANKING = new Comparator<ServerHealth>() {
+		@Override
+		public int compare(ServerHealth a, ServerHealth b) {
+			if (a.isHealthy() != b.isHealthy()) {
+				return a.isHealthy() ? -1 : 1;
+			}
+			return Long.compare(a.getLatencyMicros(), b.getLatencyMicros());
+		}
+	};
+
+	/**
+	 * Probe connecting to the server with the credentials of the configuration, or opening a socket to its binary
+	 * port when there are none
+	 * @param config
+	 * @return
+	 */
+	private static Probe defaultProbe(final OrientConfiguration config) {
+		return new Probe() {
+			@Override
+			public void probe(String url) throws Exception {
+				if (config.getUsername() != null && config.getPassword() != null) {
+					OServerAdmin server = new OServerAdmin(config.getDatabaseType() + ":" + url);
+					server.connect(config.getUsername(), config.getPassword());
+					server.close();
+				} else {
+					String host = url.contains("/") ? url.substring(0, url.indexOf('/')) : url;
+					int port = DEFAULT_PORT;
+					if (host.contains(":")) {
+						// first port of a range like 2424-2430
+						String ports = host.substring(host.indexOf(':') + 1);
+						port = Integer.parseInt(ports.contains("-") ? ports.substring(0, ports.indexOf('-')) : ports);
+						host = host.substring(0, host.indexOf(':'));
+					}
+					Socket socket = new Socket();
+					try {
+						socket.connect(new InetSocketAddress(host, port), config.getHealthCheckTimeout().intValue());
+					} finally {
+						socket.close();
+					}
+				}
+			}
+		};
+	}
+
+	private static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
@@ -0,0 +1,118 @@
+package fs.orientdb;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Lock free histogram of the latencies of an operation. Latencies are counted in buckets of powers of two of
+ * microseconds, so recording one is a couple of additions on striped counters and percentiles are reported with the
+ * upper bound of their bucket.
+ * @author alonsod86
+ *
+ */
+public class LatencyHistogram {
+
+	// Bucket 0 counts latencies under 1 micro, bucket i those in [2^(i-1), 2^i) micros, the last one anything above
+	private static final int BUCKETS = 40;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(new LongBinaryOperator() {
+		@Override
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	}, 0);
+	// When the histogram started counting, in nanos
+	private volatile long since = System.nanoTime();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records the latency of an execution
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		long micros = nanos / 1000;
+		int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets[bucket].increment();
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	/**
+	 * Records a failed execution
+	 */
+	public void error() {
+		errors.increment();
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the executions per second since the histogram was created or reset
+	 * @return
+	 */
+	public double getRatePerSecond() {
+		long elapsed = Math.max(System.nanoTime() - since, 1);
+		return count.sum() * 1e9 / elapsed;
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public long getMeanMicros() {
+		long executions = count.sum();
+		return executions > 0 ? totalNanos.sum() / executions / 1000 : 0;
+	}
+
+	public long getMaxMicros() {
+		return maxNanos.get() / 1000;
+	}
+
+	/**
+	 * Returns the latency under which the given fraction of the executions fall, rounded up to its bucket
+	 * @param fraction between 0 and 1
+	 * @return
+	 */
+	public long getPercentileMicros(double fraction) {
+		long executions = count.sum();
+		if (executions == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(executions * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i].sum();
+			if (seen >= target) {
+				return Math.min(1L << i, getMaxMicros());
+			}
+		}
+		return getMaxMicros();
+	}
+
+	/**
+	 * Clears every counter
+	 */
+	public void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+		count.reset();
+		errors.reset();
+		totalNanos.reset();
+		maxNanos.reset();
+		since = System.nanoTime();
+	}
+}
@@ -0,0 +1,18 @@
+package fs.orientdb;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of a database
+ * @author alonsod86
+ *
+ */
+public interface MetricsMXBean {
+
+	List<OperationStats> getOperations();
+
+	Map<String, Long> getGauges();
+
+	void reset();
+}
@@ -0,0 +1,90 @@
+package fs.orientdb;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import fs.orientdb.constants.OPERATION;
+
+/**
+ * Registry of the latencies and errors of the operations of a database, and of gauges such as the size of its pool.
+ * Operations are timed with start and stop, so a disabled registry does not even read the clock.
+ * @author alonsod86
+ *
+ */
+public interface MetricsRegistry {
+
+	/** Registry that records nothing */
+	MetricsRegistry NONE = new MetricsRegistry() {
+		@Override
+		public long start() {
+			return 0;
+		}
+
+		@Override
+		public void stop(OPERATION operation, long start) {}
+
+		@Override
+		public void error(OPERATION operation) {}
+
+		@Override
+		public void registerGauge(String name, LongSupplier gauge) {}
+
+		@Override
+		public List<OperationStats> getOperations() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Map<String, Long> getGauges() {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public void reset() {}
+	};
+
+	/**
+	 * Returns the start time of an operation
+	 * @return
+	 */
+	long start();
+
+	/**
+	 * Records the latency of an operation started at the given time
+	 * @param operation
+	 * @param start
+	 */
+	void stop(OPERATION operation, long start);
+
+	/**
+	 * Records a failed execution of an operation
+	 * @param operation
+	 */
+	void error(OPERATION operation);
+
+	/**
+	 * Registers a value read every time the gauges are reported
+	 * @param name
+	 * @param gauge
+	 */
+	void registerGauge(String name, LongSupplier gauge);
+
+	/**
+	 * Returns the stats of every operation executed so far
+	 * @return
+	 */
+	List<OperationStats> getOperations();
+
+	/**
+	 * Returns the current value of every gauge
+	 * @return
+	 */
+	Map<String, Long> getGauges();
+
+	/**
+	 * Clears the stats of every operation
+	 */
+	void reset();
+}
@@ -0,0 +1,27 @@
+package fs.orientdb;
+
+import java.util.HashMap;
+
+/**
+ * A node to be written in bulk: its primary key and its attributes
+ * @author alonsod86
+ *
+ */
+public class NodeEntry {
+	public Pk pk;
+	public HashMap<String, ?> attributes;
+
+	public NodeEntry(Pk pk, HashMap<String, ?> attributes) {
+		this.pk = pk;
+		this.attributes = attributes;
+	}
+
+	public NodeEntry(Pk pk) {
+		this(pk, null);
+	}
+
+	@Override
+	public String toString() {
+		return pk + " " + attributes;
+	}
+}
@@ -1,8 +1,27 @@
 package fs.orientdb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.index.OIndex;
+import com.orientechnologies.orient.core.index.OIndexKeyCursor;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OSchema;
 import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
 
 import fs.orientdb.constants.CONFLICT_STRATEGY;
+import fs.orientdb.constants.READ_BALANCING;
 
 /**
  * Instance to Orientdb database that provides a pool of connections (transactional or non transactional) and access to some configurations such
@@ -11,6 +30,10 @@ import fs.orientdb.constants.CONFLICT_STRATEGY;
  *
  */
 public class ODatabase {
+	static Logger log = LoggerFactory.getLogger(ODatabase.class.getSimpleName());
+
+	/** Keys read per step when walking an index */
+	private static final int WARM_UP_PREFETCH = 1000;
 
 	// Instance to the OrientGraphFactory where the pool is located
 	private OrientGraphFactory factory;
@@ -18,17 +41,341 @@ public class ODatabase {
 	// Instance to the graph interface of the wrapper that created this factory
 	private GraphInterface graphInterface;
 
+	// Last time (in millis) this factory was handed out or used to get a connection
+	private volatile long lastAccess = System.currentTimeMillis();
+
+	// True once the pool has been closed
+	private volatile boolean closed = false;
+
+	// True once the pool has been replaced by one on another server, it is closed when its connections are back
+	private volatile boolean retired = false;
+
+	// Parameterized statements shared by every connection of this database
+	private final QueryCache queryCache;
+
+	// Classes and indexes known to exist, shared by every connection of this database
+	private final SchemaCache schemaCache = new SchemaCache();
+
+	// Pk to rid caches of every class, shared by every connection of this database
+	private final ConcurrentHashMap<String, LRUCache<Pk, ORID>> pkCaches = new ConcurrentHashMap<String, LRUCache<Pk, ORID>>();
+
+	// Metrics of the operations of every connection of this database
+	private final MetricsRegistry metrics;
+
+	// Name of the database, used to build the pools of the other servers (null if unknown)
+	private final String name;
+
+	// Url of the server of the pool (null if unknown)
+	private final String url;
+
+	// Pools of read connections of every server, by url
+	private final ConcurrentHashMap<String, OrientGraphFactory> replicas = new ConcurrentHashMap<String, OrientGraphFactory>();
+
+	// Next server of the round robin of reads
+	private final AtomicInteger nextReplica = new AtomicInteger();
+
+	// Released when the running warm up finishes, connections wait for it (null if never warmed up)
+	private volatile CountDownLatch warmingUp;
+
+	// Report of the last warm up (null if never warmed up)
+	private volatile WarmUpReport warmUpReport;
+
 	public ODatabase(OrientGraphFactory factory, GraphInterface graphInterface) {
+		this(factory, graphInterface, null);
+	}
+
+	public ODatabase(OrientGraphFactory factory, GraphInterface graphInterface, String name) {
+		this(factory, graphInterface, name, null);
+	}
+
+	public ODatabase(OrientGraphFactory factory, GraphInterface graphInterface, String name, String url) {
 		this.factory = factory;
 		this.graphInterface = graphInterface;
+		this.name = name;
+		this.url = url;
+		this.queryCache = new QueryCache(getConfig().getQueryCacheSize());
+		this.metrics = Boolean.TRUE.equals(getConfig().getMetricsEnabled()) ? createMetrics(name) : MetricsRegistry.NONE;
+	}
+
+	/**
+	 * Creates the metrics registry of this database with the gauges of its pool, publishing it on JMX if it has a name
+	 * @param name
+	 * @return
+	 */
+	private MetricsRegistry createMetrics(String name) {
+		DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+		registry.registerGauge("pool.created", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return factory.getCreatedInstancesInPool();
+			}
+		});
+		registry.registerGauge("pool.available", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return factory.getAvailableInstancesInPool();
+			}
+		});
+		if (name != null) {
+			registry.registerMBean(name);
+		}
+		return registry;
+	}
+
+	/**
+	 * Returns the metrics of the operations of this database, a registry that records nothing if they are disabled
+	 * @return
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
 	}
 
 	public DB getDB() {
-		return new DB(factory, false);
+		return getDB(false);
 	}
 
+	/**
+	 * Returns a connection from the pool of this database
+	 * @param transactional
+	 * @return
+	 * @throws IllegalStateException if the pool has been closed, as idle pools are, so a new one must be requested to
+	 * the graph interface
+	 */
 	public DB getDB(boolean transactional) {
-		return new DB(factory, transactional);
+		checkOpen();
+		touch();
+		awaitWarmUp();
+		return new DB(this, transactional);
+	}
+
+	/**
+	 * Returns a non transactional connection for reads only. If read balancing is configured and there are several
+	 * servers, it comes from the pool of one of the healthy servers, chosen as configured. Otherwise it comes from the
+	 * pool of the primary server, as writes do. The connection rejects every write, writes must use getDB
+	 * @return
+	 */
+	public DB getReadDB() {
+		checkOpen();
+		touch();
+		awaitWarmUp();
+		String url = selectReplica();
+		return new DB(url == null ? factory : getReplicaFactory(url), this, false, true);
+	}
+
+	/**
+	 * Returns the url of the server for the next read connection, null if reads go to the primary
+	 * @return
+	 */
+	String selectReplica() {
+		OrientConfiguration config = getConfig();
+		READ_BALANCING balancing = config.getReadBalancing();
+		String[] urls = config.getUrls();
+		if (balancing == null || name == null || urls == null || urls.length < 2) {
+			return null;
+		}
+
+		List<String> healthy = Arrays.asList(urls);
+		HealthChecker checker = graphInterface != null ? graphInterface.getHealthChecker() : null;
+		if (checker != null) {
+			// ranked by latency
+			healthy = checker.getHealthyUrls();
+			if (healthy.isEmpty()) {
+				return null;
+			}
+			if (balancing == READ_BALANCING.LEAST_LATENCY) {
+				return healthy.get(0);
+			}
+		}
+		return healthy.get((nextReplica.getAndIncrement() & Integer.MAX_VALUE) % healthy.size());
+	}
+
+	/**
+	 * Returns the pool of read connections of a server, creating it on first use
+	 * @param url
+	 * @return
+	 */
+	private OrientGraphFactory getReplicaFactory(String url) {
+		OrientGraphFactory replica = replicas.get(url);
+		if (replica == null) {
+			checkOpen();
+			OrientConfiguration config = getConfig();
+			OrientGraphFactory newReplica = new OrientGraphFactory(config.getDatabaseType() + ":" + url + "/" + name)
+					.setupPool(config.getMinPool(), config.getMaxPool());
+			replica = replicas.putIfAbsent(url, newReplica);
+			if (replica == null) {
+				replica = newReplica;
+			} else {
+				newReplica.close();
+			}
+			if (closed && replica == newReplica) {
+				// closed meanwhile, the close may have missed the new pool
+				replicas.remove(url, newReplica);
+				newReplica.close();
+				checkOpen();
+			}
+		}
+		return replica;
+	}
+
+	/**
+	 * Loads up front what the first requests would load lazily: opens min pool connections, loads the schema and walks
+	 * the indexes of the given classes. Connections requested meanwhile wait for it to finish
+	 * @param classes classes whose indexes are walked, loading their pages
+	 * @return how long every phase took
+	 */
+	public WarmUpReport warmUp(String... classes) {
+		return warmUp(holdConnections(), classes);
+	}
+
+	/**
+	 * Makes the connections requested from now on wait until the returned latch is released by a warm up
+	 * @return
+	 */
+	CountDownLatch holdConnections() {
+		CountDownLatch done = new CountDownLatch(1);
+		warmingUp = done;
+		return done;
+	}
+
+	/**
+	 * Warms up the database, releasing the connections held by the given latch when it finishes
+	 * @param done
+	 * @param classes
+	 * @return
+	 */
+	WarmUpReport warmUp(CountDownLatch done, String... classes) {
+		WarmUpReport report = new WarmUpReport();
+		try {
+			long start = System.nanoTime();
+			Integer minPool = getConfig().getMinPool();
+			report.setConnections(openConnections(minPool != null ? minPool : OrientConfiguration.DEFAULT_MIN_POOL));
+			report.phase(WarmUpReport.PHASE_POOL, start);
+
+			start = System.nanoTime();
+			// not through getDB, which waits for this warm up
+			DB db = new DB(this, false);
+			try {
+				ODatabaseDocumentTx raw = db.getTinkerpopInstance().getRawGraph();
+				OSchema schema = raw.getMetadata().getSchema();
+				schema.reload();
+				raw.getMetadata().getIndexManager().reload();
+				report.setClasses(schema.getClasses().size());
+				report.phase(WarmUpReport.PHASE_SCHEMA, start);
+
+				start = System.nanoTime();
+				if (classes != null) {
+					for (String className : classes) {
+						OClass clazz = schema.getClass(className);
+						if (clazz == null) {
+							log.warn("Could not warm up indexes of class {} on database {}. Reason is {}", className, name, "CLASS NOT FOUND");
+							continue;
+						}
+						for (OIndex<?> index : clazz.getIndexes()) {
+							report.addIndex(walk(index));
+						}
+					}
+				}
+				report.phase(WarmUpReport.PHASE_INDEXES, start);
+			} finally {
+				db.close();
+			}
+			log.info("Warmed up database {} in {} ms: {}", name, report.getTotalMillis(), report);
+		} catch (Exception e) {
+			report.fail(String.valueOf(e.getMessage()));
+			log.error("Could not warm up database {}. Reason is {}", name, e.getMessage());
+		} finally {
+			warmUpReport = report;
+			done.countDown();
+		}
+		return report;
+	}
+
+	/**
+	 * Opens the given number of pooled connections at once, each one from its own thread as the pool hands out one
+	 * connection per thread, and returns them to the pool
+	 * @param count
+	 * @return the number of connections opened
+	 * @throws InterruptedException
+	 */
+	private int openConnections(int count) throws InterruptedException {
+		final CountDownLatch opened = new CountDownLatch(count);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger connections = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>(count);
+		for (int i = 0; i < count; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					OrientGraphNoTx graph = null;
+					try {
+						graph = factory.getNoTx();
+						connections.incrementAndGet();
+					} catch (Exception e) {
+						log.error("Could not open connection to database {}. Reason is {}", name, e.getMessage());
+					} finally {
+						opened.countDown();
+					}
+					try {
+						// held until every connection is open, so none is reused
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						if (graph != null) {
+							graph.shutdown();
+						}
+					}
+				}
+			}, "orientdb-warmup-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		try {
+			opened.await();
+		} finally {
+			release.countDown();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return connections.get();
+	}
+
+	/**
+	 * Reads every key of an index, loading its pages
+	 * @param index
+	 * @return the number of keys read
+	 */
+	private static long walk(OIndex<?> index) {
+		long keys = 0;
+		OIndexKeyCursor cursor = index.keyCursor();
+		while (cursor.next(WARM_UP_PREFETCH) != null) {
+			keys++;
+		}
+		return keys;
+	}
+
+	/**
+	 * Waits for the running warm up, if any
+	 */
+	private void awaitWarmUp() {
+		CountDownLatch done = warmingUp;
+		if (done != null && done.getCount() > 0) {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns the report of the last warm up, null if the database has never been warmed up
+	 * @return
+	 */
+	public WarmUpReport getWarmUpReport() {
+		return warmUpReport;
 	}
 
 	public OrientGraphFactory getFactory() {
@@ -39,6 +386,200 @@ public class ODatabase {
 		return graphInterface;
 	}
 
+	/**
+	 * Returns the configuration of the graph interface that created this database, or a default one
+	 * @return
+	 */
+	public OrientConfiguration getConfig() {
+		return graphInterface != null ? graphInterface.getConfig() : new OrientConfiguration();
+	}
+
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Returns the classes and indexes known to exist, shared by every connection of this database
+	 * @return
+	 */
+	public SchemaCache getSchemaCache() {
+		return schemaCache;
+	}
+
+	/**
+	 * Returns the cache of rids by pk of a class, or null if the cache is disabled in the configuration
+	 * @param className
+	 * @return
+	 */
+	public LRUCache<Pk, ORID> getPkCache(String className) {
+		Integer size = getConfig().getPkCacheSize();
+		if (size == null || size <= 0) return null;
+
+		LRUCache<Pk, ORID> cache = pkCaches.get(className);
+		if (cache == null) {
+			LRUCache<Pk, ORID> newCache = new LRUCache<Pk, ORID>(size);
+			cache = pkCaches.putIfAbsent(className, newCache);
+			if (cache == null) cache = newCache;
+		}
+		return cache;
+	}
+
+	/**
+	 * Forgets the rids of the nodes of a class, as when it is dropped
+	 * @param className
+	 */
+	public void clearPkCache(String className) {
+		LRUCache<Pk, ORID> cache = pkCaches.get(className);
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Returns true if every connection created by the pools is back in them
+	 * @return
+	 */
+	public boolean isIdle() {
+		for (OrientGraphFactory replica : replicas.values()) {
+			if (replica.getCreatedInstancesInPool() != replica.getAvailableInstancesInPool()) {
+				return false;
+			}
+		}
+		return factory.getCreatedInstancesInPool() == factory.getAvailableInstancesInPool();
+	}
+
+	/**
+	 * Returns the name of the database, null if unknown
+	 * @return
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the url of the server of the pool, null if unknown
+	 * @return
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Returns true if the pool of this database has been closed
+	 * @return
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Returns true if the pool has been replaced by one on another server and hands out no more connections
+	 * @return
+	 */
+	public boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * Stops handing out connections of this pool, leaving the ones borrowed to finish. Its metrics are unpublished, so
+	 * the pool replacing it can publish its own
+	 */
+	void retire() {
+		retired = true;
+		if (metrics instanceof DefaultMetricsRegistry) {
+			((DefaultMetricsRegistry) metrics).unregisterMBean();
+		}
+	}
+
+	/**
+	 * Closes the pool of connections of this database. Any further connection must be requested to the graph interface
+	 */
+	public void close() {
+		if (!closed) {
+			closed = true;
+			if (metrics instanceof DefaultMetricsRegistry) {
+				((DefaultMetricsRegistry) metrics).unregisterMBean();
+			}
+			factory.close();
+			for (OrientGraphFactory replica : replicas.values()) {
+				replica.close();
+			}
+			replicas.clear();
+		}
+	}
+
+	/**
+	 * Fails if the pool of this database has been closed
+	 */
+	private void checkOpen() {
+		if (closed || retired) {
+			throw new IllegalStateException("Pool of database " + name + " is closed, request the database again to the graph interface");
+		}
+	}
+
+	void touch() {
+		this.lastAccess = System.currentTimeMillis();
+	}
+
+	long getLastAccess() {
+		return lastAccess;
+	}
+
+	/**
+	 * Returns an asynchronous facade over this database with one worker per connection of the pool,
+	 * allowing four operations in flight per worker
+	 * @return
+	 */
+	public AsyncDB getAsyncDB() {
+		Integer maxPool = getConfig().getMaxPool();
+		int threads = maxPool != null ? maxPool : OrientConfiguration.DEFAULT_MAX_POOL;
+		return getAsyncDB(threads, threads * 4, false);
+	}
+
+	/**
+	 * Returns an asynchronous facade over this database. Remember to close it to return its connections to the pool
+	 * @param threads number of workers, each one holding a pooled connection
+	 * @param maxInFlight max number of operations submitted and not finished yet
+	 * @param transactional if workers use transactional connections, committing after every operation
+	 * @return
+	 */
+	public AsyncDB getAsyncDB(int threads, int maxInFlight, boolean transactional) {
+		touch();
+		return new AsyncDB(this, threads, maxInFlight, transactional);
+	}
+
+	/**
+	 * Returns a pipeline that serializes the writes to the same node on a single writer thread, committing up to
+	 * DEFAULT_MICRO_BATCH_SIZE writes together
+	 * @param writers
+	 * @return
+	 */
+	public WritePipeline getWritePipeline(int writers) {
+		return getWritePipeline(writers, WritePipeline.DEFAULT_MICRO_BATCH_SIZE);
+	}
+
+	/**
+	 * Returns a pipeline that serializes the writes to the same node on a single writer thread. Remember to close it
+	 * to commit the pending writes and return its connections to the pool
+	 * @param writers number of writer threads, each one holding a pooled transactional connection
+	 * @param microBatchSize max number of writes committed together by a writer
+	 * @return
+	 */
+	public WritePipeline getWritePipeline(int writers, int microBatchSize) {
+		touch();
+		return new WritePipeline(this, writers, microBatchSize);
+	}
+
+	/**
+	 * Returns a parallel scan over every record of a class, using connections of this pool
+	 * @param className
+	 * @return
+	 */
+	public ParallelScan parallelScan(String className) {
+		touch();
+		return new ParallelScan(this, className);
+	}
+
 	/**
 	 * Sets the conflict strategy when updating, inserting or deleting over old records
 	 * @param strategy
@@ -0,0 +1,69 @@
+package fs.orientdb;
+
+/**
+ * Snapshot of the latencies (in microseconds), errors and rate of an operation
+ * @author alonsod86
+ *
+ */
+public class OperationStats {
+	private final String operation;
+	private final long count;
+	private final long errors;
+	private final long meanMicros;
+	private final long p50Micros;
+	private final long p99Micros;
+	private final long maxMicros;
+	private final double ratePerSecond;
+
+	public OperationStats(String operation, LatencyHistogram histogram) {
+		this.operation = operation;
+		this.count = histogram.getCount();
+		this.errors = histogram.getErrors();
+		this.meanMicros = histogram.getMeanMicros();
+		this.p50Micros = histogram.getPercentileMicros(0.5);
+		this.p99Micros = histogram.getPercentileMicros(0.99);
+		this.maxMicros = histogram.getMaxMicros();
+		this.ratePerSecond = histogram.getRatePerSecond();
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public long getMeanMicros() {
+		return meanMicros;
+	}
+
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+
+	/**
+	 * Returns the executions per second since the metrics were enabled or reset
+	 * @return
+	 */
+	public double getRatePerSecond() {
+		return ratePerSecond;
+	}
+
+	@Override
+	public String toString() {
+		return operation + " count=" + count + " errors=" + errors + " rate=" + String.format("%.1f", ratePerSecond) + "/s mean=" + meanMicros + "us p50=" + p50Micros + "us p99=" + p99Micros + "us max=" + maxMicros + "us";
+	}
+}
@@ -1,5 +1,8 @@
 package fs.orientdb;
 
+import fs.orientdb.constants.READ_BALANCING;
+import fs.orientdb.constants.RELATION_LOOKUP;
+
 /**
  * Configuration file for the factory
  * Created by dgutierrez on 23/5/15.
@@ -7,6 +10,9 @@ package fs.orientdb;
 public class OrientConfiguration {
     public static final Integer DEFAULT_MIN_POOL = 1;
     public static final Integer DEFAULT_MAX_POOL = 10;
+    // Idle factories are never evicted by default
+    public static final Long DEFAULT_FACTORY_IDLE_TIMEOUT = 0L;
+    public static final Integer DEFAULT_QUERY_PAGE_SIZE = 1000;
 
     public static final String DATABASE_MEMORY = "memory";
     public static final String DATABASE_LOCAL = "plocal";
@@ -24,6 +30,51 @@ public class OrientConfiguration {
     // By default the database will be allocated in memory
     private String databaseType = DATABASE_MEMORY;
 
+    // Milliseconds a pooled factory may stay unused before being closed (0 disables the eviction)
+    private Long factoryIdleTimeout = DEFAULT_FACTORY_IDLE_TIMEOUT;
+
+    // Max number of parameterized statements cached per database
+    private Integer queryCacheSize = QueryCache.DEFAULT_SIZE;
+
+    // Max number of pk to rid entries cached per class (0 disables the cache)
+    private Integer pkCacheSize = 0;
+
+    // How existRelation looks relations up by default
+    private RELATION_LOOKUP relationLookup = RELATION_LOOKUP.QUERY;
+
+    // Number of records fetched per page by the lazy queries
+    private Integer queryPageSize = DEFAULT_QUERY_PAGE_SIZE;
+
+    // Retries of the writes that conflict with concurrent writes
+    private RetryPolicy retryPolicy = new RetryPolicy();
+
+    // Writes set the fields through the native API (false falls back to SQL commands)
+    private Boolean nativeWrites = true;
+
+    // Field where writes store the fingerprint of their attributes to skip unchanged writes (null disables it)
+    private String fingerprintField;
+
+    // Latency and error metrics of every operation, published on JMX (disabled by default)
+    private Boolean metricsEnabled = false;
+
+    // Log of the queries slower than its threshold (null disables it)
+    private SlowQueryLog slowQueryLog;
+
+    // Millis between the background health checks of the servers of a remote configuration (0 disables them)
+    private Long healthCheckInterval = 0L;
+
+    // Max millis a health check may take before its server is considered down
+    private Long healthCheckTimeout = HealthChecker.DEFAULT_TIMEOUT;
+
+    // How read connections are spread across the servers (null sends them to the primary, like writes)
+    private READ_BALANCING readBalancing;
+
+    // Warms up every database when its pool is created, before handing out any connection
+    private Boolean warmUp = false;
+
+    // Classes whose indexes are loaded by the warm up
+    private String[] warmUpClasses;
+
     public OrientConfiguration(String urls, Integer minPool, Integer maxPool, String username, String password, String databaseType) {
         this.urls = parseUrls(urls);
         this.minPool = minPool;
@@ -135,4 +186,130 @@ public class OrientConfiguration {
     public void setDatabaseType(String databaseType) {
         this.databaseType = databaseType;
     }
+
+    public Long getFactoryIdleTimeout() {
+        return factoryIdleTimeout;
+    }
+
+    public void setFactoryIdleTimeout(Long factoryIdleTimeout) {
+        this.factoryIdleTimeout = factoryIdleTimeout;
+    }
+
+    public Integer getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    public void setQueryCacheSize(Integer queryCacheSize) {
+        this.queryCacheSize = queryCacheSize;
+    }
+
+    public Integer getPkCacheSize() {
+        return pkCacheSize;
+    }
+
+    public void setPkCacheSize(Integer pkCacheSize) {
+        this.pkCacheSize = pkCacheSize;
+    }
+
+    public RELATION_LOOKUP getRelationLookup() {
+        return relationLookup;
+    }
+
+    public void setRelationLookup(RELATION_LOOKUP relationLookup) {
+        this.relationLookup = relationLookup;
+    }
+
+    public Integer getQueryPageSize() {
+        return queryPageSize;
+    }
+
+    public void setQueryPageSize(Integer queryPageSize) {
+        this.queryPageSize = queryPageSize;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public Boolean getNativeWrites() {
+        return nativeWrites;
+    }
+
+    public void setNativeWrites(Boolean nativeWrites) {
+        this.nativeWrites = nativeWrites;
+    }
+
+    public String getFingerprintField() {
+        return fingerprintField;
+    }
+
+    /**
+     * Sets the field where writes store the fingerprint of their attributes, so a write with the same attributes as
+     * the last one is skipped. Any write made outside the wrapper (SQL commands, setProperty on the elements) must
+     * remove the field, otherwise a later write equal to the stale fingerprint is skipped too
+     * @param fingerprintField
+     */
+    public void setFingerprintField(String fingerprintField) {
+        this.fingerprintField = fingerprintField;
+    }
+
+    public Boolean getMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public void setMetricsEnabled(Boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    public Long getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    public void setHealthCheckInterval(Long healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    public Long getHealthCheckTimeout() {
+        return healthCheckTimeout;
+    }
+
+    public void setHealthCheckTimeout(Long healthCheckTimeout) {
+        this.healthCheckTimeout = healthCheckTimeout;
+    }
+
+    public READ_BALANCING getReadBalancing() {
+        return readBalancing;
+    }
+
+    public void setReadBalancing(READ_BALANCING readBalancing) {
+        this.readBalancing = readBalancing;
+    }
+
+    public Boolean getWarmUp() {
+        return warmUp;
+    }
+
+    public void setWarmUp(Boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    public String[] getWarmUpClasses() {
+        return warmUpClasses;
+    }
+
+    public void setWarmUpClasses(String... warmUpClasses) {
+        this.warmUpClasses = warmUpClasses;
+    }
 }
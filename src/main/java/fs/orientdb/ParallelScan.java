@@ -0,0 +1,194 @@
+package fs.orientdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.iterator.ORecordIteratorCluster;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+/**
+ * Parallel scan of every record of a class. The class is split by its clusters, and large clusters by ranges of
+ * positions, and the partitions are processed on a fork-join pool. Every partition is read with a connection taken
+ * from the pool of the database, so each worker thread reuses its own pooled connection.
+ * @author alonsod86
+ *
+ */
+public class ParallelScan {
+	static Logger log = LoggerFactory.getLogger(ParallelScan.class.getSimpleName());
+
+	/** Max number of cluster positions read by a single partition */
+	public static final long DEFAULT_PARTITION_SIZE = 100000;
+
+	private final ODatabase database;
+	private final String className;
+
+	private int parallelism;
+	private long partitionSize = DEFAULT_PARTITION_SIZE;
+
+	public ParallelScan(ODatabase database, String className) {
+		this.database = database;
+		this.className = className;
+		// never use more workers than connections in the pool
+		Integer maxPool = database.getConfig().getMaxPool();
+		int cores = Runtime.getRuntime().availableProcessors();
+		this.parallelism = maxPool != null ? Math.max(1, Math.min(maxPool, cores)) : cores;
+	}
+
+	/**
+	 * Sets the number of worker threads of the scan
+	 * @param parallelism
+	 * @return
+	 */
+	public ParallelScan setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Sets the max number of cluster positions read by a single partition
+	 * @param partitionSize
+	 * @return
+	 */
+	public ParallelScan setPartitionSize(long partitionSize) {
+		this.partitionSize = partitionSize;
+		return this;
+	}
+
+	/**
+	 * Calls the consumer with every record of the class, from several threads at once. Returns the number of records read
+	 * @param consumer
+	 * @return
+	 */
+	public long forEach(final Consumer<ODocument> consumer) {
+		return reduce(0L, new BiFunction<Long, ODocument, Long>() {
+			@Override
+			public Long apply(Long count, ODocument record) {
+				consumer.accept(record);
+				return count + 1;
+			}
+		}, new BinaryOperator<Long>() {
+			@Override
+			public Long apply(Long a, Long b) {
+				return a + b;
+			}
+		});
+	}
+
+	/**
+	 * Reduces every record of the class to a single value. Each partition accumulates its records starting from the
+	 * identity, and the results of the partitions are merged with the combiner
+	 * @param identity
+	 * @param accumulator
+	 * @param combiner
+	 * @return
+	 */
+	public <T> T reduce(final T identity, final BiFunction<T, ODocument, T> accumulator, BinaryOperator<T> combiner) {
+		long start = System.currentTimeMillis();
+		List<Partition> partitions = partitions();
+
+		List<ForkJoinTask<T>> tasks = new ArrayList<ForkJoinTask<T>>(partitions.size());
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for (final Partition partition : partitions) {
+				tasks.add(pool.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						return scan(partition, identity, accumulator);
+					}
+				}));
+			}
+
+			T result = identity;
+			for (ForkJoinTask<T> task : tasks) {
+				result = combiner.apply(result, task.join());
+			}
+			log.info("Scanned class {} in {} partitions with {} threads in {} ms", className, partitions.size(), parallelism, System.currentTimeMillis() - start);
+			return result;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Reads every record of a partition with a pooled connection
+	 * @param partition
+	 * @param identity
+	 * @param accumulator
+	 * @return
+	 */
+	private <T> T scan(Partition partition, T identity, BiFunction<T, ODocument, T> accumulator) {
+		ODatabaseDocumentTx db = database.getFactory().getDatabase();
+		try {
+			T result = identity;
+			ORecordIteratorCluster<ODocument> it = new ORecordIteratorCluster<ODocument>(db, db, partition.clusterId, partition.from, partition.to, false);
+			while (it.hasNext()) {
+				result = accumulator.apply(result, it.next());
+			}
+			return result;
+		} catch (RuntimeException e) {
+			log.error("Could not scan partition {} of class {} on database {}. Reason is {}", partition, className, db.getName(), e.getMessage());
+			throw e;
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Splits the clusters of the class (and its subclasses) in ranges of positions
+	 * @return
+	 */
+	List<Partition> partitions() {
+		List<Partition> partitions = new ArrayList<Partition>();
+		ODatabaseDocumentTx db = database.getFactory().getDatabase();
+		try {
+			OClass oClass = db.getMetadata().getSchema().getClass(className);
+			if (oClass == null) {
+				log.warn("Class {} does not exist on database {}. Nothing to scan", className, db.getName());
+				return partitions;
+			}
+			for (int clusterId : oClass.getPolymorphicClusterIds()) {
+				long[] range = db.getStorage().getClusterDataRange(clusterId);
+				if (range == null || range[0] < 0 || range[1] < range[0]) {
+					continue; // empty cluster
+				}
+				for (long from = range[0]; from <= range[1]; from += partitionSize) {
+					partitions.add(new Partition(clusterId, from, Math.min(from + partitionSize - 1, range[1])));
+				}
+			}
+			return partitions;
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Range of positions of a cluster, both included
+	 */
+	static class Partition {
+		final int clusterId;
+		final long from;
+		final long to;
+
+		Partition(int clusterId, long from, long to) {
+			this.clusterId = clusterId;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public String toString() {
+			return "#" + clusterId + ":" + from + "-" + to;
+		}
+	}
+}
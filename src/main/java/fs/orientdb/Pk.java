@@ -17,6 +17,20 @@ public class Pk {
     	return key + ": " + value;
     }
     
+    @Override
+    public boolean equals(Object obj) {
+    	if (this == obj) return true;
+    	if (!(obj instanceof Pk)) return false;
+    	Pk other = (Pk) obj;
+    	return (key == null ? other.key == null : key.equals(other.key))
+    			&& (value == null ? other.value == null : value.equals(other.value));
+    }
+
+    @Override
+    public int hashCode() {
+    	return 31 * (key == null ? 0 : key.hashCode()) + (value == null ? 0 : value.hashCode());
+    }
+
     public String toQuery() {
     	if (value instanceof Number) {
     		return key + "=" + value;
@@ -0,0 +1,82 @@
+package fs.orientdb;
+
+import com.orientechnologies.orient.core.sql.OCommandSQL;
+
+/**
+ * Bounded cache of parameterized SQL statements. Statements are built once per shape (operation, class and fields)
+ * and afterwards only their parameters are bound, so values never end up concatenated into the SQL text
+ * @author alonsod86
+ *
+ */
+public class QueryCache {
+	public static final int DEFAULT_SIZE = 512;
+
+	/** node lookup by a field: class, field */
+	public static final String NODE_BY_KEY = "SELECT FROM %s WHERE %s = ? LIMIT 1";
+	/** bulk node lookup by a field: class, field */
+	public static final String NODES_BY_KEYS = "SELECT FROM %s WHERE %s IN ?";
+	/** node lookup through an index: index */
+	public static final String NODE_BY_INDEX = "SELECT rid as node FROM index:%s WHERE key = ?";
+	/** edge lookup by its vertices: edge class */
+	public static final String RELATION_BY_VERTICES = "SELECT FROM %s WHERE out = ? AND in = ?";
+	/** node upsert returning the previous content: class, assignments, pk field */
+	public static final String UPSERT_NODE = "UPDATE %s SET %s UPSERT RETURN BEFORE WHERE %s = ?";
+
+	// Statements indexed by their shape
+	private final LRUCache<String, String> statements;
+
+	public QueryCache() {
+		this(DEFAULT_SIZE);
+	}
+
+	public QueryCache(int maxSize) {
+		this.statements = new LRUCache<String, String>(maxSize);
+	}
+
+	/**
+	 * Returns the SQL text for a statement shape, formatting it only the first time it is requested
+	 * @param shape one of the statement shapes of this class
+	 * @param names class, field or index names completing the shape
+	 * @return
+	 */
+	public String statement(String shape, Object... names) {
+		StringBuilder key = new StringBuilder(shape);
+		for (Object name : names) {
+			key.append('|').append(name);
+		}
+		String cacheKey = key.toString();
+
+		String sql = statements.get(cacheKey);
+		if (sql == null) {
+			sql = String.format(shape, names);
+			statements.put(cacheKey, sql);
+		}
+		return sql;
+	}
+
+	/**
+	 * Returns a new command for a statement shape, ready to be executed with its parameters
+	 * @param shape
+	 * @param names
+	 * @return
+	 */
+	public OCommandSQL command(String shape, Object... names) {
+		return new OCommandSQL(statement(shape, names));
+	}
+
+	public long getHits() {
+		return statements.getHits();
+	}
+
+	public long getMisses() {
+		return statements.getMisses();
+	}
+
+	public double getHitRate() {
+		return statements.getHitRate();
+	}
+
+	public int size() {
+		return statements.size();
+	}
+}
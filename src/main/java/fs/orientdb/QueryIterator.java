@@ -0,0 +1,171 @@
+package fs.orientdb;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+
+import fs.orientdb.constants.OPERATION;
+
+/**
+ * Lazy iterator over the result of a SQL query that fetches it in pages, so only one page is kept in memory at a time.
+ * Queries over whole records (SELECT FROM ...) are paged by rid, any other query (projections, ORDER BY) is paged with
+ * SKIP and LIMIT. Queries with their own LIMIT are fetched in a single page.
+ * @author alonsod86
+ *
+ */
+public class QueryIterator implements Iterator<ODocument>, Closeable {
+
+	private static final Pattern RECORD_QUERY = Pattern.compile("^\\s*SELECT\\s+(\\*\\s+)?FROM\\s.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern ORDER_BY = Pattern.compile("\\sORDER\\s+BY\\s", Pattern.CASE_INSENSITIVE);
+	private static final Pattern LIMIT = Pattern.compile("\\sLIMIT\\s", Pattern.CASE_INSENSITIVE);
+
+	// Connection the query runs on
+	private final ODatabaseDocumentTx database;
+	private final String sql;
+	private final Object[] params;
+	private final int pageSize;
+
+	// Paging strategy of the query
+	private final boolean byRid;
+	private final boolean singlePage;
+
+	// Query reused between pages when paging by rid, it remembers the rid where the next page starts
+	private OSQLSynchQuery<ODocument> ridQuery;
+
+	private Iterator<ODocument> page = Collections.<ODocument>emptyList().iterator();
+	private int pageCount;
+	private long fetched;
+	private boolean exhausted;
+	private boolean closed;
+
+	// Log of the slow pages (null if disabled)
+	private SlowQueryLog slowQueryLog;
+
+	// Latency and error metrics of the pages
+	private MetricsRegistry metrics = MetricsRegistry.NONE;
+
+	public QueryIterator(ODatabaseDocumentTx database, String sql, int pageSize, Object... params) {
+		this.database = database;
+		this.sql = sql.trim();
+		this.pageSize = pageSize;
+		this.params = params;
+		this.singlePage = LIMIT.matcher(this.sql).find();
+		this.byRid = !singlePage && RECORD_QUERY.matcher(this.sql).matches() && !ORDER_BY.matcher(this.sql).find();
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!page.hasNext()) {
+			if (exhausted || closed) {
+				return false;
+			}
+			fetchPage();
+		}
+		return true;
+	}
+
+	@Override
+	public ODocument next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("Query results can not be removed");
+	}
+
+	/**
+	 * Fetches the next page of the query, releasing the records of the previous one
+	 */
+	private void fetchPage() {
+		long start = metrics.start();
+		try {
+			queryPage();
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.DB_ITERATE);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.DB_ITERATE, start);
+		}
+	}
+
+	private void queryPage() {
+		database.activateOnCurrentThread();
+		if (pageCount > 0 && !database.getTransaction().isActive()) {
+			// records already returned are not kept in the local cache of the connection
+			database.getLocalCache().clear();
+		}
+
+		long begin = slowQueryLog != null ? System.nanoTime() : 0;
+		List<ODocument> result;
+		OSQLSynchQuery<ODocument> query;
+		if (singlePage) {
+			query = new OSQLSynchQuery<ODocument>(sql);
+			result = database.query(query, params);
+			exhausted = true;
+		} else if (byRid) {
+			if (ridQuery == null) {
+				ridQuery = new OSQLSynchQuery<ODocument>(sql + " LIMIT " + pageSize);
+			}
+			query = ridQuery;
+			result = database.query(query, params);
+		} else {
+			query = new OSQLSynchQuery<ODocument>(sql + " SKIP " + fetched + " LIMIT " + pageSize);
+			result = database.query(query, params);
+		}
+		if (slowQueryLog != null) {
+			slowQueryLog.record(database, query.getText(), System.nanoTime() - begin, result.size());
+		}
+
+		if (result.size() < pageSize) {
+			exhausted = true;
+		}
+		pageCount++;
+		fetched += result.size();
+		page = result.iterator();
+	}
+
+	/**
+	 * Logs the pages whose fetch is slow
+	 * @param slowQueryLog
+	 */
+	void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+		this.slowQueryLog = slowQueryLog;
+	}
+
+	/**
+	 * Records the latency of every page fetched
+	 * @param metrics
+	 */
+	void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns the number of pages fetched so far
+	 * @return
+	 */
+	public int getPageCount() {
+		return pageCount;
+	}
+
+	/**
+	 * Stops fetching pages and releases the current one
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		ridQuery = null;
+		page = Collections.<ODocument>emptyList().iterator();
+	}
+}
@@ -0,0 +1,31 @@
+package fs.orientdb;
+
+import java.util.HashMap;
+
+/**
+ * A relation to be written in bulk: the pks of its vertices, its name and its attributes
+ * @author alonsod86
+ *
+ */
+public class RelationEntry {
+	public Pk in;
+	public Pk out;
+	public String name;
+	public HashMap<String, ?> attributes;
+
+	public RelationEntry(Pk in, Pk out, String name, HashMap<String, ?> attributes) {
+		this.in = in;
+		this.out = out;
+		this.name = name;
+		this.attributes = attributes;
+	}
+
+	public RelationEntry(Pk in, Pk out, String name) {
+		this(in, out, name, null);
+	}
+
+	@Override
+	public String toString() {
+		return out + " - " + name + " - " + in;
+	}
+}
@@ -0,0 +1,238 @@
+package fs.orientdb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.common.concur.ONeedRetryException;
+
+/**
+ * Retries writes that failed because of a conflict with a concurrent write (OConcurrentModificationException and
+ * the rest of ONeedRetryException by default), waiting an exponential backoff with random jitter between attempts.
+ * It counts the retries and the give ups of every operation.
+ * @author alonsod86
+ *
+ */
+public class RetryPolicy {
+	static Logger log = LoggerFactory.getLogger(RetryPolicy.class.getSimpleName());
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_INITIAL_BACKOFF = 1;
+	public static final long DEFAULT_MAX_BACKOFF = 1000;
+	public static final double DEFAULT_MULTIPLIER = 2;
+	public static final double DEFAULT_JITTER = 0.5;
+
+	/**
+	 * Write to be retried. The attempt starts at 1, so the write can reload stale records on later attempts
+	 */
+	public interface Action<T> {
+		T run(int attempt) throws Exception;
+	}
+
+	// Max number of attempts, including the first one
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	// Millis to wait before the second attempt
+	private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+	// Max millis to wait between two attempts
+	private long maxBackoff = DEFAULT_MAX_BACKOFF;
+	// Growth of the backoff after every attempt
+	private double multiplier = DEFAULT_MULTIPLIER;
+	// Fraction of the backoff randomly added or subtracted, so conflicting writers do not retry at the same time
+	private double jitter = DEFAULT_JITTER;
+	// Exceptions (and their subclasses) worth a retry, read by every thread using the policy
+	private volatile Set<Class<? extends Throwable>> retryableExceptions = new CopyOnWriteArraySet<Class<? extends Throwable>>();
+
+	private final ConcurrentHashMap<String, AtomicLong> retries = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentHashMap<String, AtomicLong> giveUps = new ConcurrentHashMap<String, AtomicLong>();
+
+	public RetryPolicy() {
+		retryableExceptions.add(ONeedRetryException.class);
+	}
+
+	public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, double multiplier, double jitter) {
+		this();
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.multiplier = multiplier;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Runs an action, retrying it while it fails with a retryable exception and attempts are left
+	 * @param operation name of the operation, used by the counters
+	 * @param action
+	 * @return
+	 * @throws Exception the last exception if every attempt failed, or the first one that is not retryable
+	 */
+	public <T> T execute(String operation, Action<T> action) throws Exception {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return action.run(attempt);
+			} catch (Exception e) {
+				if (!isRetryable(e)) {
+					throw e;
+				}
+				if (attempt >= maxAttempts) {
+					counter(giveUps, operation).incrementAndGet();
+					log.warn("Giving up {} after {} attempts. Reason is {}", operation, attempt, e.getMessage());
+					throw e;
+				}
+				counter(retries, operation).incrementAndGet();
+				sleep(backoff(attempt));
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the exception, or any of its causes, is one of the retryable exceptions
+	 * @param e
+	 * @return
+	 */
+	public boolean isRetryable(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+			for (Class<? extends Throwable> retryable : retryableExceptions) {
+				if (retryable.isInstance(t)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the millis to wait after a failed attempt
+	 * @param attempt
+	 * @return
+	 */
+	long backoff(int attempt) {
+		double backoff = Math.min(maxBackoff, initialBackoff * Math.pow(multiplier, attempt - 1));
+		if (jitter > 0) {
+			backoff = backoff * (1 - jitter + 2 * jitter * ThreadLocalRandom.current().nextDouble());
+		}
+		return Math.max(0, Math.round(backoff));
+	}
+
+	private static void sleep(long millis) throws InterruptedException {
+		if (millis > 0) {
+			Thread.sleep(millis);
+		}
+	}
+
+	private static AtomicLong counter(ConcurrentHashMap<String, AtomicLong> counters, String operation) {
+		AtomicLong counter = counters.get(operation);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(operation, newCounter);
+			if (counter == null) counter = newCounter;
+		}
+		return counter;
+	}
+
+	/**
+	 * Returns the number of retries of an operation
+	 * @param operation
+	 * @return
+	 */
+	public long getRetries(String operation) {
+		AtomicLong counter = retries.get(operation);
+		return counter != null ? counter.get() : 0;
+	}
+
+	/**
+	 * Returns the number of times an operation failed after using every attempt
+	 * @param operation
+	 * @return
+	 */
+	public long getGiveUps(String operation) {
+		AtomicLong counter = giveUps.get(operation);
+		return counter != null ? counter.get() : 0;
+	}
+
+	/**
+	 * Returns the number of retries of every operation
+	 * @return
+	 */
+	public Map<String, Long> getRetries() {
+		return snapshot(retries);
+	}
+
+	/**
+	 * Returns the number of give ups of every operation
+	 * @return
+	 */
+	public Map<String, Long> getGiveUps() {
+		return snapshot(giveUps);
+	}
+
+	private static Map<String, Long> snapshot(ConcurrentHashMap<String, AtomicLong> counters) {
+		Map<String, Long> snapshot = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	public void setInitialBackoff(long initialBackoff) {
+		this.initialBackoff = initialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	public void setMultiplier(double multiplier) {
+		this.multiplier = multiplier;
+	}
+
+	public double getJitter() {
+		return jitter;
+	}
+
+	public void setJitter(double jitter) {
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Returns the retryable exceptions. The set is safe to modify while the policy is in use
+	 * @return
+	 */
+	public Set<Class<? extends Throwable>> getRetryableExceptions() {
+		return retryableExceptions;
+	}
+
+	/**
+	 * Sets the retryable exceptions, copying the given set
+	 * @param retryableExceptions
+	 */
+	public void setRetryableExceptions(Set<Class<? extends Throwable>> retryableExceptions) {
+		this.retryableExceptions = new CopyOnWriteArraySet<Class<? extends Throwable>>(retryableExceptions);
+	}
+}
@@ -1,28 +1,34 @@
 package fs.orientdb;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import org.codehaus.jackson.JsonGenerationException;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.index.OIndex;
 import com.orientechnologies.orient.core.metadata.schema.OClass;
 import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
 import com.orientechnologies.orient.core.sql.OCommandSQL;
+import com.orientechnologies.orient.core.storage.ORecordDuplicatedException;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.orient.OrientDynaElementIterable;
+import com.tinkerpop.blueprints.impls.orient.OrientVertex;
 import com.tinkerpop.blueprints.impls.orient.OrientVertexType;
 
+import fs.orientdb.constants.OPERATION;
+
 /**
  * Schema implementation for OrientDB graph database
  * Created by dgutierrez on 23/5/15.
@@ -30,37 +36,33 @@ import com.tinkerpop.blueprints.impls.orient.OrientVertexType;
 public class Schema {
 	static Logger log = LoggerFactory.getLogger(Schema.class.getSimpleName());
 
+	/** Nodes written per commit by the bulk operations */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
 	// Schema name
 	private String className;
 	// Instance to parent graph database
 	private DB db;
-	// JSON serializer
-	private ObjectMapper json = new ObjectMapper();
+	// Rids of the nodes of this class by pk (null if disabled)
+	private LRUCache<Pk, ORID> pkCache;
+	// Latency and error metrics of the operations
+	private MetricsRegistry metrics;
 	
 	public Schema(String schema, DB db) {
 		this.className = schema;
 		this.db = db;
+		this.metrics = db.getMetrics();
+		if (db.getDatabase() != null) {
+			this.pkCache = db.getDatabase().getPkCache(schema);
+		}
 	}
 
 	/**
-	 * Method to find nodes in the database.
+	 * Method to find nodes of this class, using its unique index for the key if there is one.
 	 * @return boolean. If the nodes exists or not.
 	 */
 	public Vertex existNode(String key, Object value) {
-		try{
-			Iterable<Vertex> vertices = this.db.getTinkerpopInstance().getVertices(key, value);
-			
-			if (vertices!=null) {
-				Iterator<Vertex> it = vertices.iterator();
-				if (it!=null && it.hasNext()) {
-					return it.next();
-				}
-			}
-			return null;
-		} catch (Exception e) {
-			log.error("Could not check existence of node {} in database {} and class {}. Reason is {}", key + ":" + value.toString(), getDatabaseName(), className, e.getMessage());
-			return null;
-		}
+		return this.db.existNode(className, key, value);
 	}
 	
 	/**
@@ -72,12 +74,140 @@ public class Schema {
 	}
 
 	/**
-	 * Checks the existence of a node by its Pk
+	 * Checks the existence of a node by its Pk. If the pk cache is enabled, known pks are loaded directly by their rid
 	 * @param pk
 	 * @return
 	 */
 	public Vertex existNode(Pk pk) {
-		return existNode(pk.key, pk.value);
+		long start = metrics.start();
+		try {
+			if (pkCache != null) {
+				ORID rid = pkCache.get(pk);
+				if (rid != null) {
+					Vertex node = this.db.getTinkerpopInstance().getVertex(rid);
+					if (node != null && isNode(node, pk)) {
+						return node;
+					}
+					// removed by someone else, or its rid reused by another record
+					pkCache.remove(pk);
+				}
+			}
+
+			Vertex node = existNode(pk.key, pk.value);
+			cacheRid(pk, node);
+			return node;
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.SCHEMA_EXIST_NODE);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_EXIST_NODE, start);
+		}
+	}
+
+	/**
+	 * Deletes the node of a given Pk, returning false if it did not exist
+	 * @param pk
+	 * @return
+	 */
+	public boolean deleteNode(final Pk pk) {
+		long start = metrics.start();
+		try {
+			return this.db.retry("deleteNode", new RetryPolicy.Action<Boolean>() {
+				@Override
+				public Boolean run(int attempt) throws Exception {
+					Vertex node = existNode(pk);
+					if (pkCache != null) {
+						pkCache.remove(pk);
+					}
+					if (node == null) {
+						return false;
+					}
+					if (attempt > 1) {
+						DB.reload(node);
+					}
+					db.getTinkerpopInstance().removeVertex(node);
+					return true;
+				}
+			});
+		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_DELETE_NODE);
+			log.error("Could not delete node {} on database {} and class {}. Reason is {}", pk, getDatabaseName(), className, e.getMessage());
+			return false;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_DELETE_NODE, start);
+		}
+	}
+
+	/**
+	 * Returns a buffered writer that merges the updates of the same node within a window of DEFAULT_MAX_DELAY millis
+	 * or DEFAULT_MAX_PENDING nodes
+	 * @return
+	 */
+	public CoalescingWriter getCoalescingWriter() {
+		return getCoalescingWriter(CoalescingWriter.DEFAULT_MAX_DELAY, CoalescingWriter.DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * Returns a buffered writer that merges the updates of the same node within a window of the given millis or nodes
+	 * @param maxDelay
+	 * @param maxPending
+	 * @return
+	 */
+	public CoalescingWriter getCoalescingWriter(long maxDelay, int maxPending) {
+		return new CoalescingWriter(this, maxDelay, maxPending);
+	}
+
+	/**
+	 * Returns the name of the class
+	 * @return
+	 */
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * Returns the connection this class is used through
+	 * @return
+	 */
+	public DB getDB() {
+		return db;
+	}
+
+	/**
+	 * Returns the cache of rids by pk of this class, or null if it is disabled
+	 * @return
+	 */
+	public LRUCache<Pk, ORID> getPkCache() {
+		return pkCache;
+	}
+
+	/**
+	 * Returns true if the vertex is the node of this class with the given pk
+	 * @param node
+	 * @param pk
+	 * @return
+	 */
+	private boolean isNode(Vertex node, Pk pk) {
+		if (!className.equals(((OrientVertex) node).getRecord().getClassName())) {
+			return false;
+		}
+		Object value = node.getProperty(pk.key);
+		return value != null && String.valueOf(value).equals(String.valueOf(pk.value));
+	}
+
+	/**
+	 * Remembers the rid of a node once it has been saved
+	 * @param pk
+	 * @param node
+	 */
+	private void cacheRid(Pk pk, Vertex node) {
+		if (pkCache != null && node != null) {
+			ORID rid = ((OrientVertex) node).getIdentity();
+			// temporary rids of uncommitted nodes change when the transaction is committed
+			if (rid.isPersistent()) {
+				pkCache.put(pk, rid);
+			}
+		}
 	}
 
 	/**
@@ -87,7 +217,11 @@ public class Schema {
 	 * @return
 	 */
 	public boolean nodeHasChanged(Vertex node, HashMap<String, ?> newAttributes) {
+		long start = metrics.start();
 		try {
+			if (Fingerprint.matches(node, newAttributes, this.db.getFingerprintField())) {
+				return false;
+			}
 			for (String key : newAttributes.keySet()) {        	
 				if (newAttributes.get(key) != null){
 					Object prop = node.getProperty(key);
@@ -100,8 +234,11 @@ public class Schema {
 			}
 			return false;
 		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_NODE_HAS_CHANGED);
 			log.error("Could not check if node {} has changed on database {} and class {}. Reason is {}", node.getId(), getDatabaseName(), className, e.getMessage());
 			return false;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_NODE_HAS_CHANGED, start);
 		}
 	}
 
@@ -113,6 +250,7 @@ public class Schema {
 	 * @return
 	 */
 	public boolean nodeHasChanged(Vertex node, HashMap<String, ?> newAttributes, List<String>excluded) {
+		long start = metrics.start();
 		try {
 			for (String key : newAttributes.keySet()) {
 				if (!excluded.contains(key)){    			     		 
@@ -129,8 +267,11 @@ public class Schema {
 
 			return false;
 		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_NODE_HAS_CHANGED);
 			log.error("Could not check if node {} has changed {} on database {} and class {}. Reason is {}", node.getId(), getDatabaseName(), className, e.getMessage());
 			return false;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_NODE_HAS_CHANGED, start);
 		}
 	}
 
@@ -142,28 +283,44 @@ public class Schema {
 	 * @param overWrite
 	 * @return
 	 */
-	public Vertex createNode(Pk pk, HashMap<String, ?> attributes, boolean overWrite) {
+	public Vertex createNode(final Pk pk, final HashMap<String, ?> attributes, final boolean overWrite) {
+		long start = metrics.start();
 		try {
-			Vertex node = this.existNode(pk.key, pk.value);
-			if (node == null){
-				node = this.db.getTinkerpopInstance().addVertex("class:" + className);
-				node.setProperty(pk.key, pk.value);
-
-				if (attributes!=null) {
-					for (String key : attributes.keySet()) {                	
-						node.setProperty(key, attributes.get(key));                	
-					}
+			return this.db.retry("createNode", new RetryPolicy.Action<Vertex>() {
+				@Override
+				public Vertex run(int attempt) throws Exception {
+					return saveNode(pk, attributes, overWrite);
 				}
-			} else if (node != null && overWrite){
-				this.updateNode(node, attributes);
-			}
-			return node;
+			});
 		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_CREATE_NODE);
 			log.error("Could not create node {} on database {}. Reason is {}", pk, getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_CREATE_NODE, start);
 		}
 	}
 
+	/**
+	 * Creates a node like createNode, throwing the exception if the node can not be written
+	 * @param pk
+	 * @param attributes
+	 * @param overWrite
+	 * @return
+	 * @throws Exception
+	 */
+	Vertex saveNode(Pk pk, HashMap<String, ?> attributes, boolean overWrite) throws Exception {
+		Vertex node = existNode(pk);
+		if (node == null){
+			node = addNode(pk, attributes);
+			cacheRid(pk, node);
+		} else if (overWrite){
+			// not through updateNode, which would hide a conflict from the retry
+			writeNode(node, attributes, false);
+		}
+		return node;
+	}
+
 	/**
 	 * Create a new node using primary key and attributes. If the node existed before nothing will happen
 	 * @param pk
@@ -183,30 +340,349 @@ public class Schema {
 		return createNode(pk, null, false);
 	}
 	
+	/**
+	 * Creates every node of the stream that does not exist yet, in batches of DEFAULT_BATCH_SIZE nodes
+	 * @param nodes
+	 * @return
+	 */
+	public BatchResult<NodeEntry> createNodes(Iterable<NodeEntry> nodes) {
+		return createNodes(nodes, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates every node of the stream that does not exist yet. Nodes are deduplicated and looked up in batches of
+	 * the given size, committing every batch on a transactional connection. A failing node is reported in the result
+	 * and does not abort the load
+	 * @param nodes
+	 * @param batchSize
+	 * @return
+	 */
+	public BatchResult<NodeEntry> createNodes(Iterable<NodeEntry> nodes, int batchSize) {
+		long start = metrics.start();
+		try {
+			db.checkWritable();
+			BatchResult<NodeEntry> result = new BatchResult<NodeEntry>();
+			LinkedHashMap<Pk, NodeEntry> batch = new LinkedHashMap<Pk, NodeEntry>();
+			for (NodeEntry node : nodes) {
+				if (batch.containsKey(node.pk)) {
+					result.duplicated();
+					continue;
+				}
+				batch.put(node.pk, node);
+				if (batch.size() >= batchSize) {
+					createBatch(batch.values(), result);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				createBatch(batch.values(), result);
+			}
+			return result;
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.SCHEMA_CREATE_NODES);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_CREATE_NODES, start);
+		}
+	}
+
+	/**
+	 * Creates a batch of distinct nodes, resolving the existing ones with a single query per pk field
+	 * @param batch
+	 * @param result
+	 */
+	private void createBatch(Collection<NodeEntry> batch, BatchResult<NodeEntry> result) {
+		long start = System.nanoTime();
+		Set<String> existing = existingPks(batch);
+		List<NodeEntry> created = new ArrayList<NodeEntry>();
+		for (NodeEntry node : batch) {
+			if (existing.contains(pkId(node.pk.key, node.pk.value))) {
+				result.existing();
+				continue;
+			}
+			try {
+				addNode(node.pk, node.attributes);
+				created.add(node);
+			} catch (Exception e) {
+				log.error("Could not create node {} on database {}. Reason is {}", node.pk, getDatabaseName(), e.getMessage());
+				result.failed(node);
+			}
+		}
+
+		if (this.db.isTransactional()) {
+			try {
+				this.db.commit();
+			} catch (Exception e) {
+				log.warn("Could not commit batch of {} nodes on database {} and class {}, retrying one by one. Reason is {}", created.size(), getDatabaseName(), className, e.getMessage());
+				this.db.rollback();
+				created = createOneByOne(created, result);
+			}
+		}
+		for (int i = 0; i < created.size(); i++) {
+			result.created();
+		}
+
+		long elapsed = System.nanoTime() - start;
+		result.batch(batch.size(), elapsed);
+		log.info("Batch of {} nodes processed on class {} in {} ms, {} created", batch.size(), className, elapsed / 1000000, created.size());
+	}
+
+	/**
+	 * Creates and commits each node on its own, returning the ones that could be created
+	 * @param nodes
+	 * @param result
+	 * @return
+	 */
+	private List<NodeEntry> createOneByOne(List<NodeEntry> nodes, BatchResult<NodeEntry> result) {
+		List<NodeEntry> created = new ArrayList<NodeEntry>();
+		for (final NodeEntry node : nodes) {
+			try {
+				this.db.inTransaction("createNode", new RetryPolicy.Action<Vertex>() {
+					@Override
+					public Vertex run(int attempt) throws Exception {
+						return addNode(node.pk, node.attributes);
+					}
+				});
+				created.add(node);
+			} catch (Exception e) {
+				log.error("Could not create node {} on database {}. Reason is {}", node.pk, getDatabaseName(), e.getMessage());
+				result.failed(node);
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Returns the pks of the batch that already exist in this class
+	 * @param batch
+	 * @return
+	 */
+	private Set<String> existingPks(Collection<NodeEntry> batch) {
+		return existingNodes(batch).keySet();
+	}
+
+	/**
+	 * Returns the nodes of the batch that already exist in this class by their pk
+	 * @param batch
+	 * @return
+	 */
+	private Map<String, Vertex> existingNodes(Collection<NodeEntry> batch) {
+		// group the values by pk field, usually there is only one
+		Map<String, List<Object>> valuesByKey = new HashMap<String, List<Object>>();
+		for (NodeEntry node : batch) {
+			List<Object> values = valuesByKey.get(node.pk.key);
+			if (values == null) {
+				values = new ArrayList<Object>();
+				valuesByKey.put(node.pk.key, values);
+			}
+			values.add(node.pk.value);
+		}
+
+		Map<String, Vertex> existing = new HashMap<String, Vertex>();
+		for (Map.Entry<String, List<Object>> entry : valuesByKey.entrySet()) {
+			OCommandSQL sql = this.db.getQueryCache().command(QueryCache.NODES_BY_KEYS, className, entry.getKey());
+			OrientDynaElementIterable vertices = this.db.getTinkerpopInstance().command(sql).execute(entry.getValue());
+			for (Object vertex : vertices) {
+				existing.put(pkId(entry.getKey(), ((Vertex) vertex).getProperty(entry.getKey())), (Vertex) vertex);
+			}
+		}
+		return existing;
+	}
+
+	/**
+	 * Identifies a pk regardless of the type its value is stored with
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	private static String pkId(String key, Object value) {
+		return key + ":" + value;
+	}
+
+	/**
+	 * Adds a new vertex to this class with the given pk and attributes
+	 * @param pk
+	 * @param attributes
+	 * @return
+	 */
+	private Vertex addNode(Pk pk, HashMap<String, ?> attributes) {
+		// every field is set before the record is saved, so it is written once
+		HashMap<String, Object> fields = new HashMap<String, Object>();
+		fields.put(pk.key, pk.value);
+		if (attributes!=null) {
+			fields.putAll(attributes);
+		}
+		Long fingerprint = this.db.fingerprint(attributes);
+		if (fingerprint != null) {
+			fields.put(this.db.getFingerprintField(), fingerprint);
+		}
+		return this.db.getTinkerpopInstance().addVertex("class:" + className, fields);
+	}
+
 	/**
 	 * Updates an existing node or creates a new one if does not exist, returning the old value of the node updated (or empty if it didn't exists(¡)
 	 * @param pk
 	 * @param attributes
 	 * @return
-	 * @throws IOException 
-	 * @throws JsonMappingException 
-	 * @throws JsonGenerationException 
+	 * @throws Exception
 	 */
-	public Vertex upsertNode(Pk pk, HashMap<String, Object> attributes) throws Exception {
-		// add pk to attributes (the pk must be upserted too)
+	public Vertex upsertNode(final Pk pk, final HashMap<String, Object> attributes) throws Exception {
+		long start = metrics.start();
+		try {
+			if (this.db.isNativeWrites()) {
+				return this.db.retry("upsertNode", new RetryPolicy.Action<Vertex>() {
+					@Override
+					public Vertex run(int attempt) throws Exception {
+						return upsertNodeNative(pk, attributes, attempt);
+					}
+				});
+			}
+			return upsertNodeSQL(pk, attributes);
+		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_UPSERT_NODE);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_UPSERT_NODE, start);
+		}
+	}
+
+	/**
+	 * Upserts a node setting its fields directly on the record
+	 * @param pk
+	 * @param attributes
+	 * @param attempt
+	 * @return
+	 */
+	private Vertex upsertNodeNative(Pk pk, HashMap<String, Object> attributes, int attempt) {
+		Vertex node = existNode(pk);
+		if (node == null) {
+			try {
+				cacheRid(pk, addNode(pk, attributes));
+				return new OrientVertex(this.db.getTinkerpopInstance(), new ODocument());
+			} catch (ORecordDuplicatedException e) {
+				// created by someone else after the lookup
+				node = existNode(pk);
+				if (node == null) throw e;
+			}
+		} else if (attempt > 1) {
+			DB.reload(node);
+		}
+
+		OrientVertex before = ((OrientVertex) node).copy();
+		Long fingerprint = this.db.fingerprint(attributes);
+		if (this.db.isUnchanged(node, fingerprint)) {
+			return before;
+		}
+		// the fields of an existing node are saved together
+		HashMap<String, Object> fields = attributes;
+		if (fingerprint != null) {
+			fields = new HashMap<String, Object>(attributes);
+			fields.put(this.db.getFingerprintField(), fingerprint);
+		}
+		((OrientVertex) node).setProperties(fields);
+		return before;
+	}
+
+	/**
+	 * Upserts a node with an UPDATE ... UPSERT command
+	 * @param pk
+	 * @param attributes
+	 * @return
+	 * @throws Exception
+	 */
+	private Vertex upsertNodeSQL(Pk pk, HashMap<String, Object> attributes) throws Exception {
+		Long fingerprint = this.db.fingerprint(attributes);
+		// add pk to a copy of the attributes (the pk must be upserted too)
+		attributes = new HashMap<String, Object>(attributes);
 		attributes.put(pk.key, pk.value);
-		// add pk to the attributes hashmap
-		String mapAsJson = json.writeValueAsString(attributes);
-		String valueAsType = "";
-		if (pk.value instanceof Number) {
-			valueAsType = pk.value.toString();
-		} else {
-			valueAsType = "\"" + pk.value.toString() + "\"";
+		if (fingerprint != null) {
+			attributes.put(this.db.getFingerprintField(), fingerprint);
+		}
+		// bind every attribute as a parameter, sorted so the same set of fields always reuses the same statement
+		List<String> fields = new ArrayList<String>(attributes.keySet());
+		Collections.sort(fields);
+		StringBuilder assignments = new StringBuilder();
+		final Object[] params = new Object[fields.size() + 1];
+		for (int i = 0; i < fields.size(); i++) {
+			if (i > 0) assignments.append(", ");
+			assignments.append(fields.get(i)).append(" = ?");
+			params[i] = attributes.get(fields.get(i));
+		}
+		params[fields.size()] = pk.value;
+
+		final OCommandSQL sql = this.db.getQueryCache().command(QueryCache.UPSERT_NODE, className, assignments, pk.key);
+		return this.db.retry("upsertNode", new RetryPolicy.Action<Vertex>() {
+			@Override
+			public Vertex run(int attempt) throws Exception {
+				OrientDynaElementIterable result = db.getTinkerpopInstance().command(sql).execute(params);
+				return (Vertex) result.iterator().next();
+			}
+		});
+	}
+
+	/**
+	 * Updates existing nodes or creates the ones that do not exist, all of them in a single transaction. Existing nodes
+	 * are looked up with a single query per pk field. Returns the old value of every node in input order (empty if it
+	 * didn't exist), or null if the upsert failed. The attribute maps are not modified. It needs a transactional
+	 * connection: without pending changes the batch is committed (retrying it on conflicts) or rolled back, otherwise
+	 * it joins the transaction of the caller, who commits it
+	 * @param nodes
+	 * @return
+	 */
+	public List<Vertex> upsertNodes(final Collection<NodeEntry> nodes) {
+		long start = metrics.start();
+		try {
+			db.checkWritable();
+			if (!db.isTransactional()) {
+				throw new IllegalStateException("upsertNodes needs a transactional connection");
+			}
+			if (db.hasPendingChanges()) {
+				return upsertBatch(nodes);
+			}
+			return db.inTransaction("upsertNodes", new RetryPolicy.Action<List<Vertex>>() {
+				@Override
+				public List<Vertex> run(int attempt) throws Exception {
+					return upsertBatch(nodes);
+				}
+			});
+		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_UPSERT_NODES);
+			log.error("Could not upsert {} nodes on database {} and class {}. Reason is {}", nodes.size(), getDatabaseName(), className, e.getMessage());
+			return null;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_UPSERT_NODES, start);
+		}
+	}
+
+	/**
+	 * Applies a batch of upserts on the current transaction, returning the old value of every node
+	 * @param nodes
+	 * @return
+	 */
+	private List<Vertex> upsertBatch(Collection<NodeEntry> nodes) {
+		Map<String, Vertex> existing = existingNodes(nodes);
+		List<Vertex> before = new ArrayList<Vertex>(nodes.size());
+		for (NodeEntry node : nodes) {
+			String id = pkId(node.pk.key, node.pk.value);
+			Vertex vertex = existing.get(id);
+			if (vertex == null) {
+				before.add(new OrientVertex(this.db.getTinkerpopInstance(), new ODocument()));
+				// later upserts of the same pk in the batch update the new node
+				existing.put(id, addNode(node.pk, node.attributes));
+			} else {
+				before.add(((OrientVertex) vertex).copy());
+				Long fingerprint = this.db.fingerprint(node.attributes);
+				if (node.attributes != null && !this.db.isUnchanged(vertex, fingerprint)) {
+					for (String key : node.attributes.keySet()) {
+						vertex.setProperty(key, node.attributes.get(key));
+					}
+					if (fingerprint != null) {
+						vertex.setProperty(this.db.getFingerprintField(), fingerprint);
+					}
+				}
+			}
 		}
-		String query = "UPDATE " + className + " MERGE " + mapAsJson + " UPSERT RETURN BEFORE WHERE " + pk.key + "=" + valueAsType;
-		OCommandSQL sql = new OCommandSQL(query);
-		OrientDynaElementIterable result = this.db.getTinkerpopInstance().command(sql).execute();
-		return (Vertex) result.iterator().next();
+		return before;
 	}
 
 	/**
@@ -223,19 +699,127 @@ public class Schema {
 	 * @param node
 	 * @param attributes
 	 */
-	public void updateNode(Vertex node, HashMap<String, ?> attributes, boolean clearIt){
+	public void updateNode(final Vertex node, final HashMap<String, ?> attributes, final boolean clearIt){
+		long start = metrics.start();
 		try {
-			if (node==null) throw new Exception("Vertex to update can not be null");
-			if (clearIt){
-				for (String key : node.getPropertyKeys()){
-					node.removeProperty(key);
+			writeNode(node, attributes, clearIt);
+		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_UPDATE_NODE);
+			log.error("Could not update node {} on database {}. Reason is {}", node != null ? node.getId() : null, getDatabaseName(), e.getMessage());
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_UPDATE_NODE, start);
+		}
+	}
+
+	/**
+	 * Updates the content of the node like updateNode, throwing the exception if the update fails
+	 * @param node
+	 * @param attributes
+	 * @param clearIt
+	 * @throws Exception
+	 */
+	void writeNode(final Vertex node, final HashMap<String, ?> attributes, final boolean clearIt) throws Exception {
+		if (node==null) throw new IllegalArgumentException("Vertex to update can not be null");
+		final Long fingerprint = this.db.fingerprint(attributes);
+		this.db.retry("updateNode", new RetryPolicy.Action<Void>() {
+			@Override
+			public Void run(int attempt) throws Exception {
+				if (attempt > 1) {
+					DB.reload(node);
+				}
+				// unchanged content is not written again
+				if (!clearIt && db.isUnchanged(node, fingerprint)) {
+					return null;
+				}
+				if (clearIt){
+					for (String key : node.getPropertyKeys()){
+						node.removeProperty(key);
+					}
 				}
+				for (String key : attributes.keySet()){
+					node.setProperty(key, attributes.get(key));
+				}
+				if (fingerprint != null) {
+					node.setProperty(db.getFingerprintField(), fingerprint);
+				}
+				return null;
 			}
-			for (String key : attributes.keySet()){
-				node.setProperty(key, attributes.get(key));
+		});
+	}
+
+	/**
+	 * Creates a relation between two nodes of this class given their Pks
+	 * @param in
+	 * @param out
+	 * @param name
+	 * @param attributes
+	 * @return The edge representing the relation created. Null if any node does not exist or the relation can't be created.
+	 */
+	public Edge createRelation(Pk in, Pk out, String name, HashMap<String, ?> attributes) {
+		long start = metrics.start();
+		try {
+			Vertex inNode = existNode(in);
+			Vertex outNode = existNode(out);
+			if (inNode == null || outNode == null) {
+				log.error("Could not create relationship {} - {} - {} on database {} and class {}. Reason is {}", out, name, in, getDatabaseName(), className, "NODE NOT FOUND");
+				return null;
 			}
-		} catch (Exception e) {
-			log.error("Could not update node {} on database {}. Reason is {}", node.getId(), getDatabaseName(), e.getMessage());
+			return this.db.createRelation(inNode, outNode, name, attributes);
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.SCHEMA_CREATE_RELATION);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_CREATE_RELATION, start);
+		}
+	}
+
+	/**
+	 * Search for a relation between two nodes of this class given their Pks, looking the nodes up by the unique index
+	 * of the class or the pk cache
+	 * @param in
+	 * @param out
+	 * @param name
+	 * @param attributes
+	 * @return The edge representing the relation. Null if any node or the relation does not exist.
+	 */
+	public Edge existRelation(Pk in, Pk out, String name, HashMap<String, ?> attributes) {
+		long start = metrics.start();
+		try {
+			Vertex inNode = existNode(in);
+			Vertex outNode = existNode(out);
+			if (inNode == null || outNode == null) {
+				return null;
+			}
+			return this.db.existRelation(inNode, outNode, name, false, attributes);
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.SCHEMA_EXIST_RELATION);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_EXIST_RELATION, start);
+		}
+	}
+
+	/**
+	 * Drops the relations between two nodes of this class given their Pks, returning the number of relations removed
+	 * @param in
+	 * @param out
+	 * @param relationClass
+	 * @return
+	 */
+	public int relationDrop(Pk in, Pk out, String relationClass) {
+		long start = metrics.start();
+		try {
+			Vertex inNode = existNode(in);
+			Vertex outNode = existNode(out);
+			if (inNode == null || outNode == null) {
+				return 0;
+			}
+			return this.db.relationDrop(inNode, outNode, relationClass);
+		} catch (RuntimeException e) {
+			metrics.error(OPERATION.SCHEMA_RELATION_DROP);
+			throw e;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_RELATION_DROP, start);
 		}
 	}
 
@@ -257,6 +841,7 @@ public class Schema {
 	 * @return
 	 */
 	public Iterable<Vertex> getNodesRelated (Vertex vertex, Direction direction, String relName){
+		long start = metrics.start();
 		try {
 			if (relName != null){
 				return vertex.getVertices(direction, relName);
@@ -264,8 +849,11 @@ public class Schema {
 				return vertex.getVertices(direction);
 			}
 		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_GET_NODES_RELATED);
 			log.error("Could not get relationships from node {} of type {} and direction {} on database {}. Reason is {}", vertex.getId(), relName, direction, getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_GET_NODES_RELATED, start);
 		}
 	}
 
@@ -276,11 +864,15 @@ public class Schema {
 	 * @return
 	 */
 	public Iterable<Edge> getRelations (Vertex vertex, Direction direction) {
+		long start = metrics.start();
 		try {
 			return vertex.getEdges(direction);
 		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_GET_RELATIONS);
 			log.error("Could not get relationships from node {} and direction {} on database {}. Reason is {}", vertex.getId(), direction, getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_GET_RELATIONS, start);
 		}
 	}
 
@@ -291,6 +883,7 @@ public class Schema {
 	 * @return
 	 */
 	public List<String> getRelationsNames (Vertex vertex, Direction direction) {
+		long start = metrics.start();
 		try {
 			List<String> lEdgeNames = new ArrayList<String>();
 			Iterator<Edge> edgeIterable = vertex.getEdges(direction).iterator();
@@ -303,8 +896,11 @@ public class Schema {
 
 			return lEdgeNames;
 		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_GET_RELATIONS_NAMES);
 			log.error("Could not get relationships names from node {} and direction {} on database {}. Reason is {}", vertex.getId(), direction, getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_GET_RELATIONS_NAMES, start);
 		}
 	}
 
@@ -315,17 +911,24 @@ public class Schema {
 	 * @return 
 	 */
 	public OIndex<?> createUniqueIndex(OType type, String field) {
+		long start = metrics.start();
 		try {
+			db.checkWritable();
 			OrientVertexType vertexType = db.getTinkerpopInstance().getVertexType(className);
 			if (vertexType == null) {
 				vertexType = db.getTinkerpopInstance().createVertexType(className, "V");
 			}
 
 			vertexType.createProperty(field, type);
-			return vertexType.createIndex(className + "." + field, OClass.INDEX_TYPE.UNIQUE, field);
+			OIndex<?> index = vertexType.createIndex(className + "." + field, OClass.INDEX_TYPE.UNIQUE, field);
+			db.getSchemaCache().invalidate(className);
+			return index;
 		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_CREATE_UNIQUE_INDEX);
 			log.error("Could not create index {} on database {}. Reason is {}", type, getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_CREATE_UNIQUE_INDEX, start);
 		}
 	}
 	
@@ -334,12 +937,16 @@ public class Schema {
 	 * @return
 	 */
 	public Set<OIndex<?>> getIndexes() {
+		long start = metrics.start();
 		try {
 			OrientVertexType vertexType = db.getTinkerpopInstance().getVertexType(className);
 			return vertexType.getIndexes();
 		} catch (Exception e) {
+			metrics.error(OPERATION.SCHEMA_GET_INDEXES);
 			log.error("Could get indexes for database {} and class {} on database {}. Reason is {}", this.db.getTinkerpopInstance().getRawGraph().getName(), className, getDatabaseName(), e.getMessage());
 			return null;
+		} finally {
+			metrics.stop(OPERATION.SCHEMA_GET_INDEXES, start);
 		}
 	}
 
@@ -0,0 +1,123 @@
+package fs.orientdb;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classes and indexes of a database already known to exist, shared by every connection of the database, so checking
+ * them again costs a map lookup instead of a trip to the schema (and a schema reload on remote connections). It is
+ * invalidated by the wrapper when it creates or drops classes and indexes or runs DDL commands; changes made to the
+ * schema from outside the wrapper need a call to invalidate.
+ * @author alonsod86
+ *
+ */
+public class SchemaCache {
+
+	// Index name stored for the lookups that found no index
+	private static final String NO_INDEX = "";
+
+	private final Set<String> vertexClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Set<String> relationClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// Relation classes with an index over the vertices of their relations
+	private final Set<String> indexedRelationClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// Name of the index found for a class and fields, as class|fields
+	private final ConcurrentHashMap<String, String> indexes = new ConcurrentHashMap<String, String>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Returns true if the vertex class is known to exist
+	 * @param className
+	 * @return
+	 */
+	public boolean isVertexClass(String className) {
+		return count(vertexClasses.contains(className));
+	}
+
+	public void addVertexClass(String className) {
+		vertexClasses.add(className);
+	}
+
+	/**
+	 * Returns true if the relation class is known to exist, and to have the index over its vertices if requested
+	 * @param className
+	 * @param indexed
+	 * @return
+	 */
+	public boolean isRelationClass(String className, boolean indexed) {
+		return count(indexed ? indexedRelationClasses.contains(className) : relationClasses.contains(className));
+	}
+
+	public void addRelationClass(String className, boolean indexed) {
+		relationClasses.add(className);
+		if (indexed) {
+			indexedRelationClasses.add(className);
+		}
+	}
+
+	/**
+	 * Returns the name of the index found for a class and fields: null if it has not been looked up yet, empty if
+	 * there is none
+	 * @param className
+	 * @param fields
+	 * @return
+	 */
+	public String getIndex(String className, String fields) {
+		String name = indexes.get(className + "|" + fields);
+		count(name != null);
+		return name;
+	}
+
+	/**
+	 * Remembers the index of a class and fields
+	 * @param className
+	 * @param fields
+	 * @param name the name of the index, null if there is none
+	 */
+	public void putIndex(String className, String fields, String name) {
+		indexes.put(className + "|" + fields, name != null ? name : NO_INDEX);
+	}
+
+	/**
+	 * Forgets everything known about a class
+	 * @param className
+	 */
+	public void invalidate(String className) {
+		vertexClasses.remove(className);
+		relationClasses.remove(className);
+		indexedRelationClasses.remove(className);
+		String prefix = className + "|";
+		for (Iterator<String> it = indexes.keySet().iterator(); it.hasNext();) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forgets every class and index
+	 */
+	public void invalidate() {
+		vertexClasses.clear();
+		relationClasses.clear();
+		indexedRelationClasses.clear();
+		indexes.clear();
+	}
+
+	private boolean count(boolean hit) {
+		(hit ? hits : misses).incrementAndGet();
+		return hit;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,69 @@
+package fs.orientdb;
+
+/**
+ * Result of the last probe of a server
+ * @author alonsod86
+ *
+ */
+public class ServerHealth {
+	private final String url;
+	private final boolean healthy;
+	private final long latencyMicros;
+	private final long lastCheck;
+	private final int failures;
+	private final String error;
+
+	public ServerHealth(String url, boolean healthy, long latencyMicros, long lastCheck, int failures, String error) {
+		this.url = url;
+		this.healthy = healthy;
+		this.latencyMicros = latencyMicros;
+		this.lastCheck = lastCheck;
+		this.failures = failures;
+		this.error = error;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * Returns the time the last successful probe took
+	 * @return
+	 */
+	public long getLatencyMicros() {
+		return latencyMicros;
+	}
+
+	/**
+	 * Returns when the server was last probed, in millis
+	 * @return
+	 */
+	public long getLastCheck() {
+		return lastCheck;
+	}
+
+	/**
+	 * Returns the number of consecutive failed probes
+	 * @return
+	 */
+	public int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Returns why the last probe failed, null if it succeeded
+	 * @return
+	 */
+	public String getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return url + (healthy ? " up " + latencyMicros + "us" : " down (" + error + ")");
+	}
+}
@@ -0,0 +1,220 @@
+package fs.orientdb;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocument;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.OCommandSQL;
+
+/**
+ * Log of the queries slower than a threshold, with their duration, number of rows and optionally the plan given by
+ * EXPLAIN. Only a sample of the slow queries is logged, and at most a number of them per second, so a storm of slow
+ * queries is not slowed down further by its own logging. Queries not logged are still counted. DB records the
+ * queries run with query and executeQuery, and every page fetched by iterate and stream as a query of its own.
+ * @author alonsod86
+ *
+ */
+public class SlowQueryLog {
+	static Logger log = LoggerFactory.getLogger(SlowQueryLog.class.getSimpleName());
+
+	public static final long DEFAULT_THRESHOLD = 1000;
+	public static final double DEFAULT_SAMPLE_RATE = 1;
+	public static final int DEFAULT_MAX_PER_SECOND = 10;
+
+	private static final LongSupplier SYSTEM_CLOCK = new LongSupplier() {
+		@Override
+		public long getAsLong() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	// Millis from which a query is slow
+	private long threshold = DEFAULT_THRESHOLD;
+	// Fraction of the slow queries logged
+	private double sampleRate = DEFAULT_SAMPLE_RATE;
+	// Max number of slow queries logged per second
+	private int maxPerSecond = DEFAULT_MAX_PER_SECOND;
+	// Logs the plan of the slow selects
+	private boolean explain = false;
+
+	private final AtomicLong slow = new AtomicLong();
+	private final AtomicLong logged = new AtomicLong();
+	private final AtomicLong suppressed = new AtomicLong();
+	// Slow queries not logged since the last one logged
+	private final AtomicLong unreported = new AtomicLong();
+
+	// Start of the current second of the rate limit and slow queries logged within it
+	private final AtomicLong windowStart = new AtomicLong();
+	private final AtomicInteger windowCount = new AtomicInteger();
+
+	// Current time in millis, used by the rate limit
+	private final LongSupplier clock;
+
+	public SlowQueryLog() {
+		this(DEFAULT_THRESHOLD, DEFAULT_SAMPLE_RATE, DEFAULT_MAX_PER_SECOND, false);
+	}
+
+	/**
+	 * Log of the slow queries
+	 * @param threshold millis from which a query is slow
+	 * @param sampleRate fraction of the slow queries logged
+	 * @param maxPerSecond
+	 * @param explain logs the plan of the slow selects, see setExplain
+	 */
+	public SlowQueryLog(long threshold, double sampleRate, int maxPerSecond, boolean explain) {
+		this(threshold, sampleRate, maxPerSecond, explain, SYSTEM_CLOCK);
+	}
+
+	/**
+	 * Log of the slow queries whose rate limit takes the time from the given clock
+	 * @param threshold
+	 * @param sampleRate
+	 * @param maxPerSecond
+	 * @param explain
+	 * @param clock current time in millis
+	 */
+	public SlowQueryLog(long threshold, double sampleRate, int maxPerSecond, boolean explain, LongSupplier clock) {
+		this.threshold = threshold;
+		this.sampleRate = sampleRate;
+		this.maxPerSecond = maxPerSecond;
+		this.explain = explain;
+		this.clock = clock;
+		this.windowStart.set(clock.getAsLong());
+	}
+
+	/**
+	 * Returns true if a query that took the given nanos is slow
+	 * @param nanos
+	 * @return
+	 */
+	public boolean isSlow(long nanos) {
+		return nanos >= TimeUnit.MILLISECONDS.toNanos(threshold);
+	}
+
+	/**
+	 * Counts a query, logging it if it is slow, sampled and within the rate limit
+	 * @param db database the query ran on, used to explain it
+	 * @param sql
+	 * @param nanos
+	 * @param rows number of rows returned, or -1 if unknown
+	 */
+	public void record(ODatabaseDocument db, String sql, long nanos, long rows) {
+		if (!isSlow(nanos)) {
+			return;
+		}
+		slow.incrementAndGet();
+		if (!sampled() || !acquire()) {
+			suppressed.incrementAndGet();
+			unreported.incrementAndGet();
+			return;
+		}
+		logged.incrementAndGet();
+
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		long skipped = unreported.getAndSet(0);
+		if (skipped > 0) {
+			log.warn("Slow query on database {} took {} ms returning {} rows ({} slow queries not logged since the last one): {}", db.getName(), millis, rows, skipped, sql);
+		} else {
+			log.warn("Slow query on database {} took {} ms returning {} rows: {}", db.getName(), millis, rows, sql);
+		}
+
+		if (explain && isSelect(sql)) {
+			try {
+				ODocument plan = db.command(new OCommandSQL("explain " + sql)).execute();
+				log.warn("Plan of slow query {}: {}", sql, plan.toJSON());
+			} catch (Exception e) {
+				log.error("Could not explain slow query {} on database {}. Reason is {}", sql, db.getName(), e.getMessage());
+			}
+		}
+	}
+
+	private boolean sampled() {
+		return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+	}
+
+	/**
+	 * Takes one of the logs allowed in the current second
+	 * @return
+	 */
+	private boolean acquire() {
+		long now = clock.getAsLong();
+		long start = windowStart.get();
+		if (now - start >= 1000 && windowStart.compareAndSet(start, now)) {
+			windowCount.set(0);
+		}
+		return windowCount.incrementAndGet() <= maxPerSecond;
+	}
+
+	private static boolean isSelect(String sql) {
+		String statement = sql.trim();
+		return statement.regionMatches(true, 0, "select", 0, 6);
+	}
+
+	/**
+	 * Returns the number of slow queries, logged or not
+	 * @return
+	 */
+	public long getSlow() {
+		return slow.get();
+	}
+
+	/**
+	 * Returns the number of slow queries logged
+	 * @return
+	 */
+	public long getLogged() {
+		return logged.get();
+	}
+
+	/**
+	 * Returns the number of slow queries not logged because of the sampling or the rate limit
+	 * @return
+	 */
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	public long getThreshold() {
+		return threshold;
+	}
+
+	public void setThreshold(long threshold) {
+		this.threshold = threshold;
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public int getMaxPerSecond() {
+		return maxPerSecond;
+	}
+
+	public void setMaxPerSecond(int maxPerSecond) {
+		this.maxPerSecond = maxPerSecond;
+	}
+
+	public boolean isExplain() {
+		return explain;
+	}
+
+	/**
+	 * Logs the plan of the slow selects. The plan is taken running the query again in the thread of the caller, so
+	 * it doubles the latency of every slow select logged
+	 * @param explain
+	 */
+	public void setExplain(boolean explain) {
+		this.explain = explain;
+	}
+}
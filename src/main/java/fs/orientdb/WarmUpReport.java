@@ -0,0 +1,123 @@
+package fs.orientdb;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the warm up of a database loaded and how long every phase took
+ * @author alonsod86
+ *
+ */
+public class WarmUpReport {
+	public static final String PHASE_POOL = "pool";
+	public static final String PHASE_SCHEMA = "schema";
+	public static final String PHASE_INDEXES = "indexes";
+
+	// Millis taken by every phase, in the order they ran
+	private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+	private int connections;
+	private int classes;
+	private int indexes;
+	private long indexKeys;
+	// Reason why the warm up failed (null if it completed)
+	private String error;
+
+	void phase(String phase, long startNanos) {
+		phases.put(phase, (System.nanoTime() - startNanos) / 1000000);
+	}
+
+	void fail(String error) {
+		this.error = error;
+	}
+
+	void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	void setClasses(int classes) {
+		this.classes = classes;
+	}
+
+	void addIndex(long keys) {
+		this.indexes++;
+		this.indexKeys += keys;
+	}
+
+	/**
+	 * Returns the millis taken by every phase, in the order they ran
+	 * @return
+	 */
+	public Map<String, Long> getPhases() {
+		return Collections.unmodifiableMap(phases);
+	}
+
+	/**
+	 * Returns the millis taken by the whole warm up
+	 * @return
+	 */
+	public long getTotalMillis() {
+		long total = 0;
+		for (Long millis : phases.values()) {
+			total += millis;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the number of connections opened in the pool
+	 * @return
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Returns the number of classes of the schema loaded
+	 * @return
+	 */
+	public int getClasses() {
+		return classes;
+	}
+
+	/**
+	 * Returns the number of indexes walked
+	 * @return
+	 */
+	public int getIndexes() {
+		return indexes;
+	}
+
+	/**
+	 * Returns the number of keys read walking the indexes
+	 * @return
+	 */
+	public long getIndexKeys() {
+		return indexKeys;
+	}
+
+	/**
+	 * Returns true if every phase of the warm up ran
+	 * @return
+	 */
+	public boolean isComplete() {
+		return error == null;
+	}
+
+	/**
+	 * Returns the reason why the warm up failed, null if it completed
+	 * @return
+	 */
+	public String getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		if (error != null) {
+			return "failed (" + error + ") after " + connections + " connections, " + classes + " classes, " + indexes + " indexes (" + indexKeys + " keys), phases in ms " + phases;
+		}
+		return connections + " connections, " + classes + " classes, " + indexes + " indexes (" + indexKeys + " keys), phases in ms " + phases;
+	}
+}
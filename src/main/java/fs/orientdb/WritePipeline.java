@@ -0,0 +1,266 @@
+package fs.orientdb;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientVertex;
+
+/**
+ * Pipeline of node writes partitioned by class and pk. Every write goes to the writer thread chosen by the hash of
+ * its class and pk, so writes to the same record are applied in order by a single thread and never conflict with
+ * each other, while writes to different records proceed in parallel. Each writer owns a transactional connection
+ * and commits the writes queued to it in micro batches.
+ * @author alonsod86
+ *
+ */
+public class WritePipeline implements Closeable {
+	static Logger log = LoggerFactory.getLogger(WritePipeline.class.getSimpleName());
+
+	/** Max number of writes committed together by a writer */
+	public static final int DEFAULT_MICRO_BATCH_SIZE = 100;
+
+	/** Millis a write waits for room in the queue of its writer before being rejected */
+	public static final long QUEUE_TIMEOUT = 30000;
+
+	private final ODatabase database;
+	private final Writer[] writers;
+	private final int microBatchSize;
+
+	private volatile boolean closed = false;
+
+	// Held to queue writes, and exclusively to close, so no write is queued once the writers may have stopped
+	private final ReadWriteLock closing = new ReentrantReadWriteLock();
+
+	public WritePipeline(ODatabase database, int writers, int microBatchSize) {
+		this.database = database;
+		this.microBatchSize = microBatchSize;
+		this.writers = new Writer[writers];
+		for (int i = 0; i < writers; i++) {
+			this.writers[i] = new Writer(i, microBatchSize * 4);
+			this.writers[i].start();
+		}
+	}
+
+	/**
+	 * Queues an update of the attributes of an existing node. The future returns the rid of the node,
+	 * or null if it does not exist
+	 * @param className
+	 * @param pk
+	 * @param attributes
+	 * @return
+	 */
+	public CompletableFuture<ORID> updateNode(String className, Pk pk, HashMap<String, ?> attributes) {
+		return submit(new Write(className, pk, attributes, false));
+	}
+
+	/**
+	 * Queues the update of a node, creating it if it does not exist. The future returns the rid of the node
+	 * @param className
+	 * @param pk
+	 * @param attributes
+	 * @return
+	 */
+	public CompletableFuture<ORID> upsertNode(String className, Pk pk, HashMap<String, ?> attributes) {
+		return submit(new Write(className, pk, attributes, true));
+	}
+
+	/**
+	 * Stops accepting writes, commits the queued ones and returns the connection of every writer to the pool. The writes
+	 * left in the queue of a writer that stopped or did not finish in time are rejected
+	 */
+	@Override
+	public void close() {
+		closing.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			closing.writeLock().unlock();
+		}
+		try {
+			for (Writer writer : writers) {
+				writer.join(TimeUnit.MINUTES.toMillis(1));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (Writer writer : writers) {
+				writer.reject("Write pipeline closed before the write was applied");
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of writes waiting in the queue of every writer
+	 * @return
+	 */
+	public int getQueued() {
+		int queued = 0;
+		for (Writer writer : writers) {
+			queued += writer.queue.size();
+		}
+		return queued;
+	}
+
+	private CompletableFuture<ORID> submit(Write write) {
+		int hash = 31 * write.className.hashCode() + write.pk.hashCode();
+		Writer writer = writers[(hash & Integer.MAX_VALUE) % writers.length];
+		closing.readLock().lock();
+		try {
+			if (closed) {
+				write.future.completeExceptionally(new RejectedExecutionException("Write pipeline is closed"));
+			} else if (!writer.isAlive()) {
+				write.future.completeExceptionally(new RejectedExecutionException("Writer " + writer.getName() + " has stopped"));
+			} else if (!writer.queue.offer(write, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				// waits while the writer is behind, so producers can not queue writes without bound
+				write.future.completeExceptionally(new RejectedExecutionException("Queue of writer " + writer.getName() + " is full"));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			write.future.completeExceptionally(e);
+		} finally {
+			closing.readLock().unlock();
+		}
+		return write.future;
+	}
+
+	/**
+	 * A node write waiting in the queue of a writer
+	 */
+	private static class Write {
+		final String className;
+		final Pk pk;
+		final HashMap<String, ?> attributes;
+		final boolean upsert;
+		final CompletableFuture<ORID> future = new CompletableFuture<ORID>();
+
+		Write(String className, Pk pk, HashMap<String, ?> attributes, boolean upsert) {
+			this.className = className;
+			this.pk = pk;
+			this.attributes = attributes;
+			this.upsert = upsert;
+		}
+	}
+
+	/**
+	 * Thread applying the writes of its partition with its own transactional connection
+	 */
+	private class Writer extends Thread {
+		final BlockingQueue<Write> queue;
+
+		Writer(int id, int capacity) {
+			super("orientdb-writer-" + id);
+			this.queue = new LinkedBlockingQueue<Write>(capacity);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<Write> batch = new ArrayList<Write>(microBatchSize);
+			DB db = null;
+			try {
+				db = database.getDB(true);
+				while (!closed || !queue.isEmpty()) {
+					Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (first == null) continue;
+					batch.add(first);
+					queue.drainTo(batch, microBatchSize - 1);
+					commitBatch(db, batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				log.warn("Writer {} interrupted, {} writes discarded", getName(), queue.size());
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				log.error("Writer {} stopped, {} writes discarded. Reason is {}", getName(), queue.size(), e.getMessage());
+			} finally {
+				if (db != null) {
+					db.close();
+				}
+				// writes of a batch interrupted halfway are failed too, completed ones are left as they are
+				for (Write write : batch) {
+					write.future.completeExceptionally(new RejectedExecutionException("Writer " + getName() + " stopped while applying the write"));
+				}
+				reject("Writer " + getName() + " stopped before the write was applied");
+			}
+		}
+
+		/**
+		 * Fails every write left in the queue
+		 * @param reason
+		 */
+		void reject(String reason) {
+			List<Write> left = new ArrayList<Write>();
+			queue.drainTo(left);
+			for (Write write : left) {
+				write.future.completeExceptionally(new RejectedExecutionException(reason));
+			}
+		}
+
+		/**
+		 * Applies a batch of writes and commits it. If the commit fails every write is applied and committed on its own,
+		 * retrying its conflicts, so only the failing ones are reported
+		 * @param db
+		 * @param batch
+		 */
+		private void commitBatch(final DB db, List<Write> batch) {
+			List<Vertex> nodes = new ArrayList<Vertex>(batch.size());
+			try {
+				for (Write write : batch) {
+					nodes.add(apply(db, write));
+				}
+				db.commit();
+			} catch (Exception e) {
+				log.warn("Could not commit batch of {} writes on database {}, retrying one by one. Reason is {}", batch.size(), db.getDatabaseName(), e.getMessage());
+				db.rollback();
+				for (final Write write : batch) {
+					try {
+						Vertex node = db.inTransaction(write.upsert ? "upsertNode" : "updateNode", new RetryPolicy.Action<Vertex>() {
+							@Override
+							public Vertex run(int attempt) throws Exception {
+								return apply(db, write);
+							}
+						});
+						complete(write, node);
+					} catch (Exception ex) {
+						write.future.completeExceptionally(ex);
+					}
+				}
+				return;
+			}
+
+			for (int i = 0; i < batch.size(); i++) {
+				complete(batch.get(i), nodes.get(i));
+			}
+		}
+
+		private Vertex apply(DB db, Write write) throws Exception {
+			Schema schema = db.getSchema(write.className);
+			if (write.upsert) {
+				return schema.saveNode(write.pk, write.attributes, true);
+			}
+			Vertex node = schema.existNode(write.pk);
+			if (node != null) {
+				schema.writeNode(node, write.attributes, false);
+			}
+			return node;
+		}
+
+		private void complete(Write write, Vertex node) {
+			write.future.complete(node != null ? ((OrientVertex) node).getIdentity() : null);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package fs.orientdb.constants;
+
+/**
+ * Enums the operations of DB and Schema whose latencies and errors are recorded in the metrics
+ * @author alonsod86
+ *
+ */
+public enum OPERATION {
+	DB_BEGIN("DB.begin"),
+	DB_BROWSE_CLASS("DB.browseClass"),
+	DB_COMMIT("DB.commit"),
+	DB_CREATE_CLASS("DB.createClass"),
+	DB_CREATE_RELATION("DB.createRelation"),
+	DB_CREATE_RELATION_CLASS("DB.createRelationClass"),
+	DB_CREATE_RELATIONS("DB.createRelations"),
+	DB_DROP_CLASS("DB.dropClass"),
+	DB_EXECUTE_QUERY("DB.executeQuery"),
+	DB_EXIST_CLASS("DB.existClass"),
+	DB_EXIST_NODE("DB.existNode"),
+	DB_EXIST_NODE_INDEX("DB.existNodeIndex"),
+	DB_EXIST_RELATION("DB.existRelation"),
+	DB_EXIST_RELATION_CLASS("DB.existRelationClass"),
+	DB_GET_NODE("DB.getNode"),
+	/** every page fetched by iterate and stream */
+	DB_ITERATE("DB.iterate"),
+	DB_QUERY("DB.query"),
+	DB_RELATION_DROP("DB.relationDrop"),
+	DB_RELATION_HAS_CHANGED("DB.relationHasChanged"),
+	DB_RELATION_UPDATE("DB.relationUpdate"),
+	DB_ROLLBACK("DB.rollback"),
+	SCHEMA_CREATE_NODE("Schema.createNode"),
+	SCHEMA_CREATE_NODES("Schema.createNodes"),
+	SCHEMA_CREATE_RELATION("Schema.createRelation"),
+	SCHEMA_CREATE_UNIQUE_INDEX("Schema.createUniqueIndex"),
+	SCHEMA_DELETE_NODE("Schema.deleteNode"),
+	SCHEMA_EXIST_NODE("Schema.existNode"),
+	SCHEMA_EXIST_RELATION("Schema.existRelation"),
+	SCHEMA_GET_INDEXES("Schema.getIndexes"),
+	SCHEMA_GET_NODES_RELATED("Schema.getNodesRelated"),
+	SCHEMA_GET_RELATIONS("Schema.getRelations"),
+	SCHEMA_GET_RELATIONS_NAMES("Schema.getRelationsNames"),
+	SCHEMA_NODE_HAS_CHANGED("Schema.nodeHasChanged"),
+	SCHEMA_RELATION_DROP("Schema.relationDrop"),
+	SCHEMA_UPDATE_NODE("Schema.updateNode"),
+	SCHEMA_UPSERT_NODE("Schema.upsertNode"),
+	SCHEMA_UPSERT_NODES("Schema.upsertNodes");
+
+	private final String name;
+
+	private OPERATION(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the name the operation is reported with, as Class.method
+	 */
+	@Override
+	public String toString() {
+		return name;
+	}
+}
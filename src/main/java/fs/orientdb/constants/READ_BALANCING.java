@@ -0,0 +1,13 @@
+package fs.orientdb.constants;
+
+/**
+ * Enums the ways of spreading reads across the servers of a configuration
+ * @author alonsod86
+ *
+ */
+public enum READ_BALANCING {
+	/** every read connection goes to the next healthy server */
+	ROUND_ROBIN,
+	/** every read connection goes to the healthy server with the lowest latency measured by the health checker */
+	LEAST_LATENCY
+}
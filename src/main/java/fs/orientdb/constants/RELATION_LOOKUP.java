@@ -0,0 +1,13 @@
+package fs.orientdb.constants;
+
+/**
+ * Enums the ways of checking if a relation between two vertices exists
+ * @author alonsod86
+ *
+ */
+public enum RELATION_LOOKUP {
+	/** the default, looks the relation up in the (out, in) index of its class or with a query over the class */
+	QUERY,
+	/** walks the relations of the vertex with less relations of that name, comparing the rid of the other vertex */
+	ADJACENCY
+}
@@ -0,0 +1,337 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import fs.orientdb.DB;
+import fs.orientdb.GraphInterface;
+import fs.orientdb.LatencyHistogram;
+import fs.orientdb.NodeEntry;
+import fs.orientdb.ODatabase;
+import fs.orientdb.OrientConfiguration;
+import fs.orientdb.Pk;
+import fs.orientdb.RelationEntry;
+import fs.orientdb.RetryPolicy;
+import fs.orientdb.Schema;
+
+/**
+ * Soak test driving a mix of node and relation reads and writes from many threads for a fixed time, to reproduce the
+ * contention of production on a local database. Writes go to a small set of hot nodes so concurrent writers conflict.
+ * It reports the throughput and latency percentiles of every operation, the time spent waiting for a pooled
+ * connection and the conflict retries. Settings are read from system properties:
+ * <ul>
+ * <li>loadtest.type: memory or plocal (memory)</li>
+ * <li>loadtest.threads: number of client threads (8)</li>
+ * <li>loadtest.pool: max connections of the pool (threads)</li>
+ * <li>loadtest.duration: seconds to run (30)</li>
+ * <li>loadtest.nodes: nodes loaded before the run, related as a chain (10000)</li>
+ * <li>loadtest.hot: nodes targeted by writes (100)</li>
+ * <li>loadtest.mix: weight of every operation (readNode:60,upsertNode:20,readRelation:15,createRelation:5)</li>
+ * <li>loadtest.transactional: run every operation in its own transaction (false)</li>
+ * </ul>
+ * Skipped by the build, run it with <code>mvn test -Dtest=LoadTest -Dloadtest=true -Dloadtest.threads=16</code>
+ * or from its main method.
+ * @author alonsod86
+ *
+ */
+public class LoadTest {
+
+	private static final String DATABASE = "load_database";
+	private static final String CLASS = "Node";
+	private static final String PK = "pk";
+	private static final String RELATION = "next";
+
+	private final String databaseType = System.getProperty("loadtest.type", OrientConfiguration.DATABASE_MEMORY);
+	private final int threads = Integer.getInteger("loadtest.threads", 8);
+	private final int pool = Integer.getInteger("loadtest.pool", threads);
+	private final long duration = Long.getLong("loadtest.duration", 30);
+	private final int nodes = Integer.getInteger("loadtest.nodes", 10000);
+	private final int hot = Integer.getInteger("loadtest.hot", 100);
+	private final String mix = System.getProperty("loadtest.mix", "readNode:60,upsertNode:20,readRelation:15,createRelation:5");
+	private final boolean transactional = Boolean.getBoolean("loadtest.transactional");
+
+	/**
+	 * Operation of the mix, run with a connection taken from the pool for it
+	 */
+	private static abstract class Operation {
+		final String name;
+		int weight;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LatencyHistogram poolWait = new LatencyHistogram();
+
+		Operation(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Runs the operation, returning null if it failed
+		 */
+		abstract Object run(DB db, Random random) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new LoadTest().run();
+		System.exit(0);
+	}
+
+	@Test
+	public void loadTest() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("loadtest"));
+		List<Operation> operations = run();
+		long executed = 0;
+		for (Operation operation : operations) {
+			executed += operation.latency.getCount();
+		}
+		Assert.assertTrue(executed > 0);
+	}
+
+	/**
+	 * Loads the database, runs the mix and prints the report
+	 * @return the operations of the mix with their statistics
+	 * @throws Exception
+	 */
+	List<Operation> run() throws Exception {
+		File directory = null;
+		String url = "load_" + System.nanoTime();
+		if (OrientConfiguration.DATABASE_LOCAL.equals(databaseType)) {
+			directory = Files.createTempDirectory("orientdb-load").toFile();
+			url = directory.getAbsolutePath();
+		}
+		OrientConfiguration config = new OrientConfiguration(url, 1, pool, "admin", "admin", databaseType);
+		GraphInterface g = new GraphInterface(config);
+		try {
+			DB db = g.createDatabase(DATABASE);
+			try {
+				db.existClass(CLASS, PK, true);
+				db.existRelationClass(RELATION, true, true);
+			} finally {
+				db.close();
+			}
+			load(g.getOFactory(DATABASE));
+
+			List<Operation> operations = operations();
+			RetryPolicy retryPolicy = config.getRetryPolicy();
+			Map<String, Long> retriesBefore = retryPolicy.getRetries();
+			Map<String, Long> giveUpsBefore = retryPolicy.getGiveUps();
+
+			long elapsed = drive(g.getOFactory(DATABASE), operations);
+
+			report(operations, elapsed, diff(retryPolicy.getRetries(), retriesBefore), diff(retryPolicy.getGiveUps(), giveUpsBefore));
+			return operations;
+		} finally {
+			g.dropDatabase(DATABASE);
+			g.shutdown();
+			if (directory != null) {
+				delete(directory);
+			}
+		}
+	}
+
+	/**
+	 * Creates the chain of nodes the operations work on, node i related to node i - 1
+	 * @param database
+	 */
+	private void load(ODatabase database) {
+		List<NodeEntry> entries = new ArrayList<NodeEntry>(nodes);
+		List<RelationEntry> relations = new ArrayList<RelationEntry>(nodes);
+		for (int i = 0; i < nodes; i++) {
+			entries.add(new NodeEntry(pk(i), attributes(i)));
+			if (i > 0) {
+				relations.add(new RelationEntry(pk(i), pk(i - 1), RELATION, null));
+			}
+		}
+		DB db = database.getDB(true);
+		try {
+			db.getSchema(CLASS).createNodes(entries);
+			db.createRelations(relations, CLASS, DB.DEFAULT_BATCH_SIZE);
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Builds the operations of the mix with their weights
+	 * @return
+	 */
+	private List<Operation> operations() {
+		Map<String, Operation> available = new HashMap<String, Operation>();
+		available.put("readNode", new Operation("readNode") {
+			@Override
+			Object run(DB db, Random random) {
+				return db.getSchema(CLASS).existNode(pk(random.nextInt(nodes)));
+			}
+		});
+		available.put("upsertNode", new Operation("upsertNode") {
+			@Override
+			Object run(DB db, Random random) throws Exception {
+				Schema schema = db.getSchema(CLASS);
+				return schema.upsertNode(pk(random.nextInt(hot)), attributes(random.nextInt()));
+			}
+		});
+		available.put("readRelation", new Operation("readRelation") {
+			@Override
+			Object run(DB db, Random random) {
+				int i = 1 + random.nextInt(nodes - 1);
+				return db.existRelation(pk(i), pk(i - 1), RELATION, null);
+			}
+		});
+		available.put("createRelation", new Operation("createRelation") {
+			@Override
+			Object run(DB db, Random random) throws Exception {
+				return db.createRelation(pk(random.nextInt(hot)), pk(random.nextInt(hot)), RELATION, null);
+			}
+		});
+
+		List<Operation> operations = new ArrayList<Operation>();
+		for (String entry : mix.split(",")) {
+			String[] parts = entry.trim().split(":");
+			Operation operation = available.get(parts[0]);
+			if (operation == null) {
+				throw new IllegalArgumentException("Unknown operation " + parts[0] + ", expected one of " + available.keySet());
+			}
+			operation.weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+			operations.add(operation);
+		}
+		return operations;
+	}
+
+	/**
+	 * Runs the mix from every thread until the duration is over
+	 * @param database
+	 * @param operations
+	 * @return elapsed nanos
+	 * @throws InterruptedException
+	 */
+	private long drive(final ODatabase database, final List<Operation> operations) throws InterruptedException {
+		int total = 0;
+		for (Operation operation : operations) {
+			total += operation.weight;
+		}
+		final int totalWeight = total;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicLong seeds = new AtomicLong(42);
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.SECONDS.toNanos(duration);
+
+		for (int t = 0; t < threads; t++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(seeds.incrementAndGet());
+					try {
+						while (System.nanoTime() < end) {
+							execute(database, pick(operations, random.nextInt(totalWeight)), random);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load-" + t);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Takes a connection from the pool, runs the operation and returns the connection
+	 * @param database
+	 * @param operation
+	 * @param random
+	 */
+	private void execute(ODatabase database, Operation operation, Random random) {
+		long requested = System.nanoTime();
+		DB db = database.getDB(transactional);
+		long acquired = System.nanoTime();
+		operation.poolWait.record(acquired - requested);
+		try {
+			Object result = operation.run(db, random);
+			if (transactional) {
+				db.commit();
+			}
+			operation.latency.record(System.nanoTime() - acquired);
+			if (result == null) {
+				operation.latency.error();
+			}
+		} catch (Exception e) {
+			if (transactional) {
+				db.rollback();
+			}
+			operation.latency.record(System.nanoTime() - acquired);
+			operation.latency.error();
+		} finally {
+			db.close();
+		}
+	}
+
+	private static Operation pick(List<Operation> operations, int point) {
+		for (Operation operation : operations) {
+			point -= operation.weight;
+			if (point < 0) {
+				return operation;
+			}
+		}
+		return operations.get(operations.size() - 1);
+	}
+
+	private void report(List<Operation> operations, long elapsed, Map<String, Long> retries, Map<String, Long> giveUps) {
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format("%s database, %d threads, %d connections, %d nodes (%d hot), %.1fs%s",
+				databaseType, threads, pool, nodes, hot, seconds, transactional ? ", transactional" : ""));
+		System.out.println(String.format("%-16s %10s %10s %8s %8s %8s %8s %8s %10s %10s",
+				"operation", "ops", "ops/s", "errors", "p50", "p99", "p999", "max", "wait p50", "wait p99"));
+		long executed = 0;
+		for (Operation operation : operations) {
+			LatencyHistogram latency = operation.latency;
+			executed += latency.getCount();
+			System.out.println(String.format("%-16s %10d %10.0f %8d %8d %8d %8d %8d %10d %10d",
+					operation.name, latency.getCount(), latency.getCount() / seconds, latency.getErrors(),
+					latency.getPercentileMicros(0.5), latency.getPercentileMicros(0.99), latency.getPercentileMicros(0.999),
+					latency.getMaxMicros(), operation.poolWait.getPercentileMicros(0.5), operation.poolWait.getPercentileMicros(0.99)));
+		}
+		System.out.println(String.format("%-16s %10d %10.0f (latencies in micros)", "total", executed, executed / seconds));
+		System.out.println("Conflict retries " + retries + ", give ups " + giveUps);
+	}
+
+	private static Map<String, Long> diff(Map<String, Long> after, Map<String, Long> before) {
+		Map<String, Long> diff = new HashMap<String, Long>();
+		for (Map.Entry<String, Long> entry : after.entrySet()) {
+			Long previous = before.get(entry.getKey());
+			diff.put(entry.getKey(), entry.getValue() - (previous != null ? previous : 0));
+		}
+		return diff;
+	}
+
+	private static Pk pk(long i) {
+		return new Pk(PK, String.valueOf(i));
+	}
+
+	private static HashMap<String, Object> attributes(int value) {
+		HashMap<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put("value", value);
+		return attributes;
+	}
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -1,26 +1,67 @@
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.orientechnologies.orient.core.db.record.ORecordOperation;
+import com.orientechnologies.orient.core.exception.OConcurrentModificationException;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
 import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.version.OSimpleVersion;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.orient.OrientDynaElementIterable;
+import com.tinkerpop.blueprints.impls.orient.OrientEdge;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
 import com.tinkerpop.blueprints.impls.orient.OrientVertex;
 
+import fs.orientdb.AsyncDB;
+import fs.orientdb.BatchResult;
+import fs.orientdb.CoalescingWriter;
 import fs.orientdb.DB;
 import fs.orientdb.GraphInterface;
+import fs.orientdb.HealthChecker;
+import fs.orientdb.NodeEntry;
 import fs.orientdb.ODatabase;
+import fs.orientdb.OperationStats;
 import fs.orientdb.OrientConfiguration;
 import fs.orientdb.Pk;
+import fs.orientdb.QueryIterator;
+import fs.orientdb.RelationEntry;
+import fs.orientdb.RetryPolicy;
 import fs.orientdb.Schema;
+import fs.orientdb.ServerHealth;
+import fs.orientdb.SlowQueryLog;
+import fs.orientdb.WarmUpReport;
+import fs.orientdb.WritePipeline;
+import fs.orientdb.constants.READ_BALANCING;
+import fs.orientdb.constants.RELATION_LOOKUP;
 
 /**
  * Created by tiocansino on 23/5/15.
@@ -74,6 +115,21 @@ public class UnitTests {
 		Assert.assertTrue(available == (created-1));
 	}
 
+	@Test
+	public void testFactoryReuse() throws IOException {
+		ODatabase factory = g.getOFactory("my_database");
+		Assert.assertSame(factory, g.getOFactory("my_database"));
+		g.shutdown();
+		Assert.assertTrue(factory.isClosed());
+		try {
+			factory.getDB();
+			Assert.fail("A closed pool must not hand out connections");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		Assert.assertNotSame(factory, g.getOFactory("my_database"));
+	}
+
 	@Test
 	public void testExistClass() throws IOException {
 		DB db = g.getOFactory("my_database").getDB();
@@ -92,6 +148,94 @@ public class UnitTests {
 		Assert.assertTrue(sc.existNode(new Pk(TEST_PKEY, 1))!=null);
 	}
 
+	@Test
+	public void testExistNodeByClass() throws IOException {
+		DB db = g.getOFactory("my_database").getDB(true);
+		db.existClass(TEST_CLASS + "_2", TEST_PKEY, true);
+		Schema sc = db.getSchema(TEST_CLASS);
+		db.getSchema(TEST_CLASS + "_2").createNode(new Pk(TEST_PKEY, "1"));
+		sc.createNode(new Pk(TEST_PKEY, 2));
+		// uncommitted nodes are found through the index too
+		Assert.assertTrue(sc.existNode(new Pk(TEST_PKEY, 2))!=null);
+		db.commit();
+		Assert.assertTrue(db.getUniqueIndex(TEST_CLASS, TEST_PKEY)!=null);
+		Assert.assertTrue(sc.existNode(new Pk(TEST_PKEY, "1"))==null);
+		Assert.assertTrue(db.getSchema(TEST_CLASS + "_2").existNode(new Pk(TEST_PKEY, "1"))!=null);
+		// no index on V, found with a scan
+		Assert.assertTrue(db.existNode(new Pk(TEST_PKEY, "1"))!=null);
+	}
+
+	@Test
+	public void testQueryCache() throws IOException {
+		DB db = g.getOFactory("my_database").getDB();
+		Schema sc = db.getSchema(TEST_CLASS);
+		sc.createNode(new Pk(TEST_PKEY, "1"));
+		long misses = db.getQueryCache().getMisses();
+		// V has no index, so the lookup is done with a query
+		Assert.assertTrue(db.existNode(TEST_PKEY, "1")!=null);
+		Assert.assertTrue(db.existNode(TEST_PKEY, "' OR 1=1 OR '")==null);
+		// same statement shape, only parameters change
+		Assert.assertTrue(db.getQueryCache().getMisses()<=misses+1);
+		Assert.assertTrue(db.getQueryCache().getHits()>=1);
+	}
+
+	@Test
+	public void testPkCache() throws IOException {
+		g.getConfig().setPkCacheSize(10);
+		DB db = g.getOFactory("my_database").getDB();
+		Schema sc = db.getSchema(TEST_CLASS);
+		sc.createNode(new Pk(TEST_PKEY, "1"));
+		sc.createNode(new Pk(TEST_PKEY, "2"));
+		Assert.assertTrue(sc.existNode(new Pk(TEST_PKEY, "1"))!=null);
+		Assert.assertTrue(sc.getPkCache().getHits()==1);
+		// relation endpoints are resolved from the cache too
+		Assert.assertTrue(sc.createRelation(new Pk(TEST_PKEY, "2"), new Pk(TEST_PKEY, "1"), TEST_RELATION, null)!=null);
+		Assert.assertTrue(sc.getPkCache().getHits()==3);
+		Assert.assertTrue(sc.existRelation(new Pk(TEST_PKEY, "2"), new Pk(TEST_PKEY, "1"), TEST_RELATION, null)!=null);
+		Assert.assertTrue(sc.getPkCache().getHits()==5);
+		Assert.assertTrue(db.existRelation(new Pk(TEST_PKEY, "2"), new Pk(TEST_PKEY, "1"), TEST_RELATION, null)!=null);
+		Assert.assertTrue(db.existRelation(new Pk(TEST_PKEY, "1"), new Pk(TEST_PKEY, "2"), TEST_RELATION, null)==null);
+		Assert.assertTrue(sc.deleteNode(new Pk(TEST_PKEY, "1")));
+		Assert.assertTrue(sc.existNode(new Pk(TEST_PKEY, "1"))==null);
+
+		// a cached rid is only taken if it still holds the node
+		ORID rid = ((OrientVertex) sc.existNode(new Pk(TEST_PKEY, "2"))).getIdentity();
+		sc.getPkCache().put(new Pk(TEST_PKEY, "3"), rid);
+		Assert.assertTrue(sc.existNode(new Pk(TEST_PKEY, "3"))==null);
+		Assert.assertTrue(sc.getPkCache().get(new Pk(TEST_PKEY, "3"))==null);
+
+		// dropped classes forget their nodes
+		Assert.assertTrue(db.existClass(TEST_CLASS + "_dropped", TEST_PKEY, true));
+		Schema dropped = db.getSchema(TEST_CLASS + "_dropped");
+		dropped.createNode(new Pk(TEST_PKEY, "1")).remove();
+		Assert.assertTrue(dropped.getPkCache().size()==1);
+		Assert.assertTrue(db.dropClass(TEST_CLASS + "_dropped"));
+		Assert.assertTrue(dropped.getPkCache().size()==0);
+	}
+
+	@Test
+	public void testCreateNodes() throws IOException {
+		DB db = g.getOFactory("my_database").getDB(true);
+		Schema sc = db.getSchema(TEST_CLASS);
+		sc.createNode(new Pk(TEST_PKEY, "1"));
+		db.commit();
+
+		List<NodeEntry> nodes = new ArrayList<NodeEntry>();
+		for (int i = 0; i < 5; i++) {
+			HashMap<String, Object> attributes = new HashMap<String, Object>();
+			attributes.put("attrib1", "val" + i);
+			nodes.add(new NodeEntry(new Pk(TEST_PKEY, String.valueOf(i)), attributes));
+		}
+		nodes.add(new NodeEntry(new Pk(TEST_PKEY, "4")));
+
+		BatchResult<NodeEntry> result = sc.createNodes(nodes, 2);
+		Assert.assertEquals(4, result.getCreated());
+		Assert.assertEquals(1, result.getExisting());
+		Assert.assertTrue(result.getFailed().isEmpty());
+		Assert.assertEquals(5, db.getTinkerpopInstance().countVertices(TEST_CLASS));
+		Assert.assertEquals("val3", sc.existNode(new Pk(TEST_PKEY, "3")).getProperty("attrib1"));
+	}
+
 	@Test
 	public void testCreateIndex() throws IOException {
 		DB db = g.getOFactory("my_database").getDB();
@@ -142,6 +286,42 @@ public class UnitTests {
 		Assert.assertTrue(sc.existRelationClass(TEST_RELATION, true));
 	}
 
+	@Test
+	public void testExistRelationIndexed() throws IOException {
+		DB db = g.getOFactory("my_database").getDB();
+		Assert.assertTrue(db.existRelationClass(TEST_RELATION + "_3", true, true));
+		Assert.assertTrue(db.getVerticesIndex(TEST_RELATION + "_3")!=null);
+		// existing classes get the index too
+		Assert.assertTrue(db.existRelationClass(TEST_RELATION, true, true));
+		Assert.assertTrue(db.getVerticesIndex(TEST_RELATION)!=null);
+
+		Schema sc = db.getSchema(TEST_CLASS);
+		Vertex v1 = sc.createNode(new Pk(TEST_PKEY, 1));
+		Vertex v2 = sc.createNode(new Pk(TEST_PKEY, 2));
+		Edge edge = db.createRelation(v1, v2, TEST_RELATION + "_3");
+		Assert.assertEquals(edge.getId(), db.existRelation(v1, v2, TEST_RELATION + "_3").getId());
+		Assert.assertTrue(db.existRelation(v2, v1, TEST_RELATION + "_3")==null);
+	}
+
+	@Test
+	public void testExistRelationByAdjacency() throws IOException {
+		DB db = g.getOFactory("my_database").getDB();
+		Schema sc = db.getSchema(TEST_CLASS);
+		Vertex hub = sc.createNode(new Pk(TEST_PKEY, 0));
+		Vertex v1 = sc.createNode(new Pk(TEST_PKEY, 1));
+		Vertex v2 = sc.createNode(new Pk(TEST_PKEY, 2));
+		for (int i = 3; i < 10; i++) {
+			db.createRelation(sc.createNode(new Pk(TEST_PKEY, i)), hub, TEST_RELATION);
+		}
+		Edge edge = db.createRelation(v1, hub, TEST_RELATION);
+		Assert.assertEquals(edge.getId(), db.existRelation(v1, hub, TEST_RELATION, RELATION_LOOKUP.ADJACENCY).getId());
+		Assert.assertTrue(db.existRelation(v2, hub, TEST_RELATION, RELATION_LOOKUP.ADJACENCY)==null);
+		Assert.assertTrue(db.existRelation(hub, v1, TEST_RELATION, RELATION_LOOKUP.ADJACENCY)==null);
+
+		g.getConfig().setRelationLookup(RELATION_LOOKUP.ADJACENCY);
+		Assert.assertEquals(edge.getId(), db.existRelation(v1, hub, TEST_RELATION).getId());
+	}
+
 	@Test
 	public void testCreateRelation() throws IOException {
 		DB db = g.getOFactory("my_database").getDB();
@@ -153,6 +333,28 @@ public class UnitTests {
 		Assert.assertTrue(db.getTinkerpopInstance().countEdges()==1);
 	}
 
+	@Test
+	public void testCreateRelations() throws IOException {
+		DB db = g.getOFactory("my_database").getDB(true);
+		Schema sc = db.getSchema(TEST_CLASS);
+		for (int i = 1; i <= 3; i++) {
+			sc.createNode(new Pk(TEST_PKEY, String.valueOf(i)));
+		}
+		db.commit();
+
+		List<RelationEntry> relations = new ArrayList<RelationEntry>();
+		relations.add(new RelationEntry(new Pk(TEST_PKEY, "2"), new Pk(TEST_PKEY, "1"), TEST_RELATION));
+		relations.add(new RelationEntry(new Pk(TEST_PKEY, "3"), new Pk(TEST_PKEY, "1"), TEST_RELATION));
+		relations.add(new RelationEntry(new Pk(TEST_PKEY, "3"), new Pk(TEST_PKEY, "2"), TEST_RELATION + "_2"));
+		relations.add(new RelationEntry(new Pk(TEST_PKEY, "9"), new Pk(TEST_PKEY, "1"), TEST_RELATION));
+
+		BatchResult<RelationEntry> result = db.createRelations(relations, TEST_CLASS, 2);
+		Assert.assertEquals(3, result.getCreated());
+		Assert.assertEquals(1, result.getFailed().size());
+		Assert.assertEquals(2, result.getBatches());
+		Assert.assertEquals(3, db.getTinkerpopInstance().countEdges());
+	}
+
 	@Test
 	public void testRelationHasChanged() throws IOException {
 		DB db = g.getOFactory("my_database").getDB();
@@ -182,6 +384,96 @@ public class UnitTests {
 		Assert.assertTrue(edge.getPropertyKeys().size()==2);
 	}
 
+	@Test
+	public void testRetryPolicy() throws Exception {
+		DB db = g.getOFactory("my_database").getDB();
+		RetryPolicy policy = db.getRetryPolicy();
+		Assert.assertTrue(policy == config.getRetryPolicy());
+		policy.setInitialBackoff(0);
+
+		// conflicts are retried until the write succeeds
+		final AtomicInteger conflicts = new AtomicInteger(2);
+		String result = policy.execute("write", new RetryPolicy.Action<String>() {
+			@Override
+			public String run(int attempt) throws Exception {
+				if (conflicts.getAndDecrement() > 0) {
+					throw conflict();
+				}
+				return "done";
+			}
+		});
+		Assert.assertEquals("done", result);
+		Assert.assertEquals(2, policy.getRetries("write"));
+
+		// the last conflict is thrown once every attempt is used
+		try {
+			policy.execute("conflict", new RetryPolicy.Action<String>() {
+				@Override
+				public String run(int attempt) throws Exception {
+					throw conflict();
+				}
+			});
+			Assert.fail();
+		} catch (OConcurrentModificationException e) {
+			Assert.assertEquals(policy.getMaxAttempts() - 1, policy.getRetries("conflict"));
+			Assert.assertEquals(1, policy.getGiveUps("conflict"));
+		}
+
+		// any other error is not retried
+		try {
+			policy.execute("error", new RetryPolicy.Action<String>() {
+				@Override
+				public String run(int attempt) throws Exception {
+					throw new IllegalArgumentException();
+				}
+			});
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals(0, policy.getRetries("error"));
+		}
+
+		// transactions whose commit conflicts with a concurrent write are rolled back and replayed
+		db.getSchema(TEST_CLASS).createNode(new Pk(TEST_PKEY, 1));
+		DB tx = g.getOFactory("my_database").getDB(true);
+		final Schema txSchema = tx.getSchema(TEST_CLASS);
+		Integer written = tx.inTransaction("conflictingUpdate", new RetryPolicy.Action<Integer>() {
+			@Override
+			public Integer run(int attempt) throws Exception {
+				HashMap<String, Object> attributes = new HashMap<String, Object>();
+				attributes.put("attempt", attempt);
+				txSchema.updateNode(txSchema.existNode(new Pk(TEST_PKEY, 1)), attributes);
+				if (attempt == 1) {
+					// saved by another thread before this transaction commits
+					CompletableFuture.runAsync(new Runnable() {
+						@Override
+						public void run() {
+							DB other = g.getOFactory("my_database").getDB();
+							HashMap<String, Object> attributes = new HashMap<String, Object>();
+							attributes.put("attempt", 0);
+							Schema concurrent = other.getSchema(TEST_CLASS);
+							concurrent.updateNode(concurrent.existNode(new Pk(TEST_PKEY, 1)), attributes);
+							other.close();
+						}
+					}).get();
+				}
+				return attempt;
+			}
+		});
+		tx.close();
+		Assert.assertEquals(Integer.valueOf(2), written);
+		Assert.assertEquals(1, policy.getRetries("conflictingUpdate"));
+		Assert.assertEquals(Integer.valueOf(2), db.getSchema(TEST_CLASS).existNode(new Pk(TEST_PKEY, 1)).getProperty("attempt"));
+
+		// a failed overwrite of an existing node reaches the retry and is reported
+		HashMap<String, Object> invalid = new HashMap<String, Object>();
+		invalid.put("", 1);
+		Assert.assertNull(db.getSchema(TEST_CLASS).createNode(new Pk(TEST_PKEY, 1), invalid, true));
+	}
+
+	private static OConcurrentModificationException conflict() {
+		return new OConcurrentModificationException(new ORecordId(9, 0), new OSimpleVersion(2), new OSimpleVersion(1), ORecordOperation.UPDATED);
+	}
+
 	@Test
 	public void testExecuteQuery() throws Exception {
 		DB db = g.getOFactory("my_database").getDB();
@@ -204,6 +496,141 @@ public class UnitTests {
 		Assert.assertTrue(!it.hasNext());
 	}
 
+	@Test
+	public void testStreamQuery() throws Exception {
+		DB db = g.getOFactory("my_database").getDB();
+		Schema sc = db.getSchema(TEST_CLASS);
+		for (int i = 0; i < 7; i++) {
+			sc.createNode(new Pk(TEST_PKEY, String.valueOf(i)));
+		}
+
+		QueryIterator it = db.iterate("SELECT FROM " + TEST_CLASS + " WHERE " + TEST_PKEY + " <> ?", 3, "0");
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		Assert.assertEquals(6, count);
+		// two full pages plus the empty one that ends the query
+		Assert.assertEquals(3, it.getPageCount());
+
+		// projections are paged with skip
+		it = db.iterate("SELECT " + TEST_PKEY + " FROM " + TEST_CLASS + " ORDER BY " + TEST_PKEY, 3);
+		Assert.assertEquals("0", it.next().field(TEST_PKEY));
+		it.close();
+		Assert.assertTrue(!it.hasNext());
+
+		g.getConfig().setQueryPageSize(2);
+		Stream<ODocument> stream = db.stream("SELECT FROM " + TEST_CLASS);
+		Assert.assertEquals(7, stream.count());
+		stream.close();
+	}
+
+	@Test
+	public void testParallelScan() throws Exception {
+		ODatabase factory = g.getOFactory("my_database");
+		Schema sc = factory.getDB().getSchema(TEST_CLASS);
+		for (int i = 0; i < 10; i++) {
+			sc.createNode(new Pk(TEST_PKEY, String.valueOf(i)));
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+		long scanned = factory.parallelScan(TEST_CLASS).setParallelism(2).setPartitionSize(3).forEach(new Consumer<ODocument>() {
+			@Override
+			public void accept(ODocument record) {
+				count.incrementAndGet();
+			}
+		});
+		Assert.assertEquals(10, scanned);
+		Assert.assertEquals(10, count.get());
+
+		Integer sum = factory.parallelScan(TEST_CLASS).setPartitionSize(4).reduce(0, new BiFunction<Integer, ODocument, Integer>() {
+			@Override
+			public Integer apply(Integer total, ODocument record) {
+				return total + Integer.parseInt(record.<String>field(TEST_PKEY));
+			}
+		}, new BinaryOperator<Integer>() {
+			@Override
+			public Integer apply(Integer a, Integer b) {
+				return a + b;
+			}
+		});
+		Assert.assertEquals(45, sum.intValue());
+	}
+
+	@Test
+	public void testAsyncDB() throws Exception {
+		AsyncDB async = g.getOFactory("my_database").getAsyncDB(2, 3, true);
+		List<CompletableFuture<Vertex>> futures = new ArrayList<CompletableFuture<Vertex>>();
+		for (int i = 0; i < 10; i++) {
+			final Pk pk = new Pk(TEST_PKEY, String.valueOf(i));
+			futures.add(async.submit(TEST_CLASS, new AsyncDB.SchemaOperation<Vertex>() {
+				@Override
+				public Vertex apply(Schema schema) throws Exception {
+					return schema.createNode(pk);
+				}
+			}));
+			Assert.assertTrue(async.getInFlight()<=3);
+		}
+		for (CompletableFuture<Vertex> future : futures) {
+			Assert.assertTrue(future.get()!=null);
+		}
+		long count = async.submit(new AsyncDB.Operation<Long>() {
+			@Override
+			public Long apply(DB db) throws Exception {
+				return db.getTinkerpopInstance().countVertices(TEST_CLASS);
+			}
+		}).get();
+		async.close();
+		Assert.assertEquals(10, count);
+	}
+
+	@Test
+	public void testWritePipeline() throws Exception {
+		WritePipeline pipeline = g.getOFactory("my_database").getWritePipeline(2, 10);
+		List<CompletableFuture<ORID>> futures = new ArrayList<CompletableFuture<ORID>>();
+		for (int i = 0; i < 30; i++) {
+			HashMap<String, Object> attributes = new HashMap<String, Object>();
+			attributes.put("attrib1", i);
+			futures.add(pipeline.upsertNode(TEST_CLASS, new Pk(TEST_PKEY, String.valueOf(i % 3)), attributes));
+		}
+		Assert.assertTrue(pipeline.updateNode(TEST_CLASS, new Pk(TEST_PKEY, "9"), new HashMap<String, Object>()).get()==null);
+		// failed updates fail their future
+		HashMap<String, Object> invalid = new HashMap<String, Object>();
+		invalid.put("", 1);
+		CompletableFuture<ORID> failed = pipeline.updateNode(TEST_CLASS, new Pk(TEST_PKEY, "0"), invalid);
+		try {
+			failed.get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			// expected
+		}
+		// and so do failed upserts of existing nodes
+		failed = pipeline.upsertNode(TEST_CLASS, new Pk(TEST_PKEY, "1"), invalid);
+		try {
+			failed.get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			// expected
+		}
+		pipeline.close();
+		for (CompletableFuture<ORID> future : futures) {
+			Assert.assertTrue(future.get().isPersistent());
+		}
+		try {
+			pipeline.upsertNode(TEST_CLASS, new Pk(TEST_PKEY, "0"), new HashMap<String, Object>()).get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+
+		// writes to the same pk are applied in order
+		DB db = g.getOFactory("my_database").getDB();
+		Assert.assertEquals(3, db.getTinkerpopInstance().countVertices(TEST_CLASS));
+		Assert.assertEquals(Integer.valueOf(29), db.getSchema(TEST_CLASS).existNode(new Pk(TEST_PKEY, "2")).getProperty("attrib1"));
+	}
+
 	@Test
 	public void testNodesRelated() throws IOException {
 		DB db = g.getOFactory("my_database").getDB();
@@ -277,6 +704,447 @@ public class UnitTests {
 		Assert.assertTrue(v.getPropertyKeys().size()==3);
 	}
 
+	@Test
+	public void testUpsertNodes() throws Exception {
+		DB db = g.getOFactory("my_database").getDB(true);
+		Schema sc = db.getSchema(TEST_CLASS);
+		HashMap<String, Object> existing = new HashMap<String, Object>();
+		existing.put("attrib1", "old");
+		sc.createNode(new Pk(TEST_PKEY, 2), existing);
+
+		List<NodeEntry> nodes = new ArrayList<NodeEntry>();
+		for (int i = 1; i <= 3; i++) {
+			HashMap<String, Object> attributes = new HashMap<String, Object>();
+			attributes.put("attrib1", "new" + i);
+			nodes.add(new NodeEntry(new Pk(TEST_PKEY, i), attributes));
+		}
+		List<Vertex> before = sc.upsertNodes(nodes);
+
+		// old values in input order, empty for the nodes created
+		Assert.assertEquals(3, before.size());
+		Assert.assertEquals(0, ((OrientVertex) before.get(0)).getRecord().fields());
+		Assert.assertEquals("old", before.get(1).getProperty("attrib1"));
+		Assert.assertEquals(0, ((OrientVertex) before.get(2)).getRecord().fields());
+		// input maps are untouched
+		Assert.assertEquals(1, nodes.get(0).attributes.size());
+
+		for (int i = 1; i <= 3; i++) {
+			Assert.assertEquals("new" + i, sc.existNode(new Pk(TEST_PKEY, i)).getProperty("attrib1"));
+		}
+		// the connection is still usable after the transaction
+		Assert.assertNotNull(sc.createNode(new Pk(TEST_PKEY, 4)));
+
+		// with pending changes the batch joins the transaction of the caller
+		Assert.assertTrue(db.hasPendingChanges());
+		Assert.assertNotNull(sc.upsertNodes(Arrays.asList(new NodeEntry(new Pk(TEST_PKEY, 5), new HashMap<String, Object>()))));
+		db.rollback();
+		Assert.assertNull(sc.existNode(new Pk(TEST_PKEY, 4)));
+		Assert.assertNull(sc.existNode(new Pk(TEST_PKEY, 5)));
+
+		// a non transactional connection is refused
+		Assert.assertNull(g.getOFactory("my_database").getDB().getSchema(TEST_CLASS).upsertNodes(nodes));
+	}
+
+	@Test
+	public void testNativeWrites() throws Exception {
+		DB db = g.getOFactory("my_database").getDB();
+		Assert.assertTrue(db.isNativeWrites());
+		Schema sc = db.getSchema(TEST_CLASS);
+		HashMap<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put("attrib1", "val1");
+		sc.upsertNode(new Pk(TEST_PKEY, 1), attributes);
+		sc.upsertNode(new Pk(TEST_PKEY, 2), attributes);
+
+		Edge edge = db.createRelation(new Pk(TEST_PKEY, 1), new Pk(TEST_PKEY, 2), TEST_RELATION, attributes);
+		Assert.assertEquals(TEST_RELATION, edge.getLabel());
+		Assert.assertEquals("val1", edge.getProperty("attrib1"));
+		Assert.assertEquals(sc.existNode(new Pk(TEST_PKEY, 1)).getId(), edge.getVertex(Direction.IN).getId());
+
+		// the SQL path gives the same result
+		config.setNativeWrites(false);
+		Assert.assertFalse(db.isNativeWrites());
+		attributes.put("attrib2", "val2");
+		OrientVertex before = (OrientVertex) sc.upsertNode(new Pk(TEST_PKEY, 1), attributes);
+		Assert.assertEquals("val1", before.getProperty("attrib1"));
+		Assert.assertEquals("val2", sc.existNode(new Pk(TEST_PKEY, 1)).getProperty("attrib2"));
+		edge = db.createRelation(sc.existNode(new Pk(TEST_PKEY, 1)), sc.existNode(new Pk(TEST_PKEY, 2)), TEST_RELATION, attributes);
+		Assert.assertEquals("val2", edge.getProperty("attrib2"));
+	}
+
+	@Test
+	public void testFingerprint() throws Exception {
+		config.setFingerprintField("_fp");
+		DB db = g.getOFactory("my_database").getDB();
+		Schema sc = db.getSchema(TEST_CLASS);
+		HashMap<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put("attrib1", "val1");
+		attributes.put("attrib2", 2);
+		OrientVertex v1 = (OrientVertex) sc.createNode(new Pk(TEST_PKEY, 1), attributes);
+		Vertex v2 = sc.createNode(new Pk(TEST_PKEY, 2));
+		Assert.assertNotNull(v1.getProperty("_fp"));
+
+		HashMap<String, Object> same = new HashMap<String, Object>();
+		same.put("attrib2", 2);
+		same.put("attrib1", "val1");
+		Assert.assertFalse(sc.nodeHasChanged(v1, same));
+		// unchanged content is not written again
+		int version = v1.getRecord().getVersion();
+		sc.createNode(new Pk(TEST_PKEY, 1), same, true);
+		sc.upsertNode(new Pk(TEST_PKEY, 1), same);
+		Assert.assertEquals(version, ((OrientVertex) sc.existNode(new Pk(TEST_PKEY, 1))).getRecord().getVersion());
+
+		same.put("attrib2", 3);
+		Assert.assertTrue(sc.nodeHasChanged(v1, same));
+		sc.updateNode(v1, same);
+		Assert.assertEquals(Integer.valueOf(3), sc.existNode(new Pk(TEST_PKEY, 1)).getProperty("attrib2"));
+
+		// a subset of the content has not changed either
+		HashMap<String, Object> subset = new HashMap<String, Object>();
+		subset.put("attrib1", "val1");
+		Assert.assertFalse(sc.nodeHasChanged(sc.existNode(new Pk(TEST_PKEY, 1)), subset));
+		// the same value with another type is a change
+		same.put("attrib2", "3");
+		sc.updateNode(sc.existNode(new Pk(TEST_PKEY, 1)), same);
+		Assert.assertEquals("3", sc.existNode(new Pk(TEST_PKEY, 1)).getProperty("attrib2"));
+
+		OrientEdge edge = (OrientEdge) db.createRelation(v1, v2, TEST_RELATION, attributes);
+		Assert.assertFalse(db.relationHasChanged(edge, attributes));
+		version = edge.getRecord().getVersion();
+		db.relationUpdate(edge, attributes);
+		Assert.assertEquals(version, edge.getRecord().getVersion());
+	}
+
+	@Test
+	public void testCoalescingWriter() throws Exception {
+		DB db = g.getOFactory("my_database").getDB();
+		Schema sc = db.getSchema(TEST_CLASS);
+		sc.createNode(new Pk(TEST_PKEY, 1));
+		sc.createNode(new Pk(TEST_PKEY, 2));
+
+		CoalescingWriter writer = sc.getCoalescingWriter(60000, 100);
+		for (int i = 0; i < 10; i++) {
+			HashMap<String, Object> attributes = new HashMap<String, Object>();
+			attributes.put("counter", i);
+			if (i == 0) attributes.put("first", true);
+			writer.update(new Pk(TEST_PKEY, 1 + i % 2), attributes);
+		}
+		// nothing written until the window is over
+		Assert.assertEquals(2, writer.getPending());
+		Assert.assertNull(sc.existNode(new Pk(TEST_PKEY, 1)).getProperty("counter"));
+
+		writer.close();
+		Assert.assertEquals(0, writer.getPending());
+		Assert.assertEquals(2, writer.getWritten());
+		Assert.assertEquals(5.0, writer.getCoalescingRatio(), 0);
+		// last write wins per key, earlier keys are kept
+		Vertex v1 = sc.existNode(new Pk(TEST_PKEY, 1));
+		Assert.assertEquals(Integer.valueOf(8), v1.getProperty("counter"));
+		Assert.assertEquals(Boolean.TRUE, v1.getProperty("first"));
+		Assert.assertEquals(Integer.valueOf(9), sc.existNode(new Pk(TEST_PKEY, 2)).getProperty("counter"));
+
+		// updates of a failed commit are kept pending and not counted
+		DB tx = g.getOFactory("my_database").getDB(true);
+		CoalescingWriter txWriter = tx.getSchema(TEST_CLASS).getCoalescingWriter(60000, 100);
+		HashMap<String, Object> duplicated = new HashMap<String, Object>();
+		duplicated.put(TEST_PKEY, "2");
+		txWriter.update(new Pk(TEST_PKEY, 1), duplicated);
+		Assert.assertFalse(txWriter.flush());
+		Assert.assertEquals(1, txWriter.getPending());
+		Assert.assertEquals(0, txWriter.getWritten());
+		tx.close();
+
+		// while the flushes fail the buffer is bounded, and automatic flushes back off
+		tx = g.getOFactory("my_database").getDB(true);
+		CoalescingWriter bounded = new CoalescingWriter(tx.getSchema(TEST_CLASS), 60000, 1, 2);
+		bounded.update(new Pk(TEST_PKEY, 1), duplicated);
+		Assert.assertEquals(1, bounded.getPending());
+		Assert.assertFalse(bounded.tick());
+		bounded.update(new Pk(TEST_PKEY, 2), new HashMap<String, Object>());
+		Assert.assertEquals(2, bounded.getPending());
+		try {
+			bounded.update(new Pk(TEST_PKEY, 3), new HashMap<String, Object>());
+			Assert.fail();
+		} catch (RejectedExecutionException e) {
+			Assert.assertEquals(1, bounded.getRejected());
+		}
+		// nodes already buffered are still merged
+		bounded.update(new Pk(TEST_PKEY, 2), new HashMap<String, Object>());
+		Assert.assertEquals(2, bounded.getPending());
+		tx.close();
+
+		// the window is over on the next tick
+		CoalescingWriter ticking = sc.getCoalescingWriter(1, 100);
+		HashMap<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put("counter", 10);
+		ticking.update(new Pk(TEST_PKEY, 2), attributes);
+		Thread.sleep(5);
+		Assert.assertTrue(ticking.tick());
+		Assert.assertEquals(0, ticking.getPending());
+		Assert.assertEquals(Integer.valueOf(10), sc.existNode(new Pk(TEST_PKEY, 2)).getProperty("counter"));
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		OrientConfiguration metricsConfig = new OrientConfiguration("in_memory",1,1,"admin","admin", OrientConfiguration.DATABASE_MEMORY);
+		metricsConfig.setMetricsEnabled(true);
+		GraphInterface mg = new GraphInterface(metricsConfig);
+		ObjectName name = new ObjectName("fs.orientdb:type=Metrics,name=" + ObjectName.quote("metrics_database"));
+		DB db = mg.createDatabase("metrics_database");
+		try {
+			db.existClass(TEST_CLASS, TEST_PKEY, true);
+			Schema sc = db.getSchema(TEST_CLASS);
+			sc.createNode(new Pk(TEST_PKEY, 1));
+			sc.existNode(new Pk(TEST_PKEY, 1));
+			try {
+				db.executeQuery("SELECT FROM WHERE");
+				Assert.fail();
+			} catch (Exception e) {
+				// counted as an error
+			}
+
+			// lazy queries are timed per page
+			QueryIterator pages = db.iterate("SELECT FROM " + TEST_CLASS, 1);
+			while (pages.hasNext()) {
+				pages.next();
+			}
+
+			Map<String, OperationStats> stats = new HashMap<String, OperationStats>();
+			for (OperationStats operation : db.getMetrics().getOperations()) {
+				stats.put(operation.getOperation(), operation);
+			}
+			Assert.assertEquals(1, stats.get("Schema.createNode").getCount());
+			Assert.assertEquals(0, stats.get("Schema.createNode").getErrors());
+			Assert.assertTrue(stats.get("Schema.existNode").getCount() >= 2);
+			Assert.assertEquals(1, stats.get("DB.executeQuery").getErrors());
+			Assert.assertEquals(pages.getPageCount(), stats.get("DB.iterate").getCount());
+			Assert.assertTrue(stats.get("Schema.createNode").getRatePerSecond() > 0);
+			Assert.assertTrue(db.getMetrics().getGauges().get("pool.created") >= 1);
+
+			// published on JMX
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Assert.assertTrue(server.isRegistered(name));
+			Assert.assertNotNull(server.getAttribute(name, "Operations"));
+		} finally {
+			db.close();
+			mg.dropDatabase("metrics_database");
+		}
+		Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+
+	@Test
+	public void testSlowQueryLog() throws Exception {
+		// every query is slow, 5 logged per second of a clock that only moves when told
+		final AtomicLong now = new AtomicLong();
+		SlowQueryLog slowLog = new SlowQueryLog(0, 1, 5, true, new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return now.get();
+			}
+		});
+		config.setSlowQueryLog(slowLog);
+		DB db = g.getOFactory("my_database").getDB();
+		Schema sc = db.getSchema(TEST_CLASS);
+		sc.createNode(new Pk(TEST_PKEY, 1));
+		sc.createNode(new Pk(TEST_PKEY, 2));
+
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(2, db.query("SELECT FROM " + TEST_CLASS).size());
+		}
+		Assert.assertEquals(10, slowLog.getSlow());
+		Assert.assertEquals(5, slowLog.getLogged());
+		Assert.assertEquals(5, slowLog.getSuppressed());
+
+		// the next second logs again
+		now.addAndGet(1000);
+		db.query("SELECT FROM " + TEST_CLASS);
+		Assert.assertEquals(6, slowLog.getLogged());
+
+		// rows of a slow command are counted without consuming its result
+		int rows = 0;
+		for (Object row : db.executeQuery("SELECT FROM " + TEST_CLASS + " WHERE " + TEST_PKEY + " = 1")) {
+			Assert.assertEquals("1", ((Vertex) row).getProperty(TEST_PKEY).toString());
+			rows++;
+		}
+		Assert.assertEquals(1, rows);
+		Assert.assertEquals(12, slowLog.getSlow());
+
+		// every page of a lazy query is recorded
+		QueryIterator pages = db.iterate("SELECT FROM " + TEST_CLASS, 1);
+		while (pages.hasNext()) {
+			pages.next();
+		}
+		Assert.assertEquals(12 + pages.getPageCount(), slowLog.getSlow());
+		long slow = slowLog.getSlow();
+
+		// nothing is slow under the threshold
+		slowLog.setThreshold(60000);
+		db.query("SELECT FROM " + TEST_CLASS);
+		Assert.assertEquals(slow, slowLog.getSlow());
+	}
+
+	@Test
+	public void testHealthChecker() throws Exception {
+		final Map<String, Long> delays = new ConcurrentHashMap<String, Long>();
+		delays.put("slow:2424", 50L);
+		delays.put("fast:2424", 0L);
+		delays.put("hung:2424", 5000L);
+		HealthChecker checker = new HealthChecker(new String[]{"slow:2424", "down:2424", "fast:2424", "hung:2424"}, 60000, 500, new HealthChecker.Probe() {
+			@Override
+			public void probe(String url) throws Exception {
+				Long delay = delays.get(url);
+				if (delay == null) {
+					throw new IOException("Connection refused");
+				}
+				Thread.sleep(delay);
+			}
+		});
+		long start = System.currentTimeMillis();
+		checker.start();
+		try {
+			// probed in parallel, the hung server costs one timeout
+			Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+			Assert.assertEquals(Arrays.asList("fast:2424", "slow:2424"), checker.getHealthyUrls());
+			Map<String, ServerHealth> servers = new HashMap<String, ServerHealth>();
+			for (ServerHealth server : checker.getServers()) {
+				servers.put(server.getUrl(), server);
+			}
+			Assert.assertEquals("Connection refused", servers.get("down:2424").getError());
+			Assert.assertFalse(servers.get("hung:2424").isHealthy());
+			Assert.assertTrue(servers.get("slow:2424").getLatencyMicros() >= 50000);
+
+			// a failed connection takes the server out until it is probed again
+			checker.markDown("fast:2424");
+			Assert.assertEquals("slow:2424", checker.getHealthyUrl());
+			Assert.assertFalse(checker.isHealthy("fast:2424"));
+			Assert.assertEquals(1, checker.getFailures("fast:2424"));
+			checker.check();
+			Assert.assertEquals("fast:2424", checker.getHealthyUrl());
+		} finally {
+			checker.close();
+		}
+	}
+
+	@Test
+	public void testReadBalancing() throws Exception {
+		OrientConfiguration replicaConfig = new OrientConfiguration("replica_a;replica_b",1,2,"admin","admin", OrientConfiguration.DATABASE_MEMORY);
+		replicaConfig.setReadBalancing(READ_BALANCING.ROUND_ROBIN);
+		GraphInterface rg = new GraphInterface(replicaConfig);
+		DB primary = rg.createDatabase("balanced_database");
+		try {
+			// writes stay on the primary
+			Assert.assertEquals("memory:replica_a/balanced_database", primary.getTinkerpopInstance().getRawGraph().getURL());
+
+			// reads alternate between the servers, each one with its own pool
+			Map<String, Integer> reads = new HashMap<String, Integer>();
+			for (int i = 0; i < 4; i++) {
+				DB read = rg.getOFactory("balanced_database").getReadDB();
+				String url = read.getTinkerpopInstance().getRawGraph().getURL();
+				reads.put(url, reads.containsKey(url) ? reads.get(url) + 1 : 1);
+				read.close();
+			}
+			Assert.assertEquals(Integer.valueOf(2), reads.get("memory:replica_a/balanced_database"));
+			Assert.assertEquals(Integer.valueOf(2), reads.get("memory:replica_b/balanced_database"));
+
+			// reads can not write, on a replica or on the primary
+			DB read = rg.getOFactory("balanced_database").getReadDB();
+			Assert.assertTrue(read.isReadOnly());
+			Assert.assertNull(read.createClass(TEST_CLASS, TEST_PKEY));
+			try {
+				read.executeQuery("CREATE CLASS " + TEST_CLASS);
+				Assert.fail("A read connection must not run writes");
+			} catch (UnsupportedOperationException e) {
+				// expected
+			}
+			read.close();
+			DB primaryRead = g.getOFactory("my_database").getReadDB();
+			Assert.assertTrue(primaryRead.isReadOnly());
+			Assert.assertNull(primaryRead.getSchema(TEST_CLASS).createNode(new Pk(TEST_PKEY, "read_only")));
+			Assert.assertNull(primaryRead.getSchema(TEST_CLASS).existNode(new Pk(TEST_PKEY, "read_only")));
+		} finally {
+			primary.close();
+			rg.dropDatabase("balanced_database");
+		}
+	}
+
+	@Test
+	public void testWarmUp() throws Exception {
+		DB db = g.getOFactory("my_database").getDB();
+		Schema sc = db.getSchema(TEST_CLASS);
+		for (int i = 0; i < 10; i++) {
+			sc.createNode(new Pk(TEST_PKEY, i));
+		}
+		db.close();
+		g.shutdown();
+
+		// pools created from now on are warmed up before being handed out
+		config.setMinPool(3);
+		config.setMaxPool(5);
+		config.setWarmUp(true);
+		config.setWarmUpClasses(TEST_CLASS, TEST_CLASS + "_missing");
+		ODatabase factory = g.getOFactory("my_database");
+		Assert.assertTrue(factory.getFactory().getCreatedInstancesInPool() >= 3);
+		Assert.assertTrue(factory.getWarmUpReport().isComplete());
+
+		WarmUpReport report = factory.warmUp(TEST_CLASS);
+		Assert.assertEquals(3, report.getConnections());
+		Assert.assertTrue(report.getClasses() > 0);
+		Assert.assertEquals(1, report.getIndexes());
+		Assert.assertEquals(10, report.getIndexKeys());
+		Assert.assertEquals(Arrays.asList(WarmUpReport.PHASE_POOL, WarmUpReport.PHASE_SCHEMA, WarmUpReport.PHASE_INDEXES), new ArrayList<String>(report.getPhases().keySet()));
+
+		db = factory.getDB();
+		Assert.assertNotNull(db.getSchema(TEST_CLASS).existNode(new Pk(TEST_PKEY, 5)));
+		db.close();
+
+		// a failed warm up is reported
+		ODatabase unreachable = new ODatabase(new OrientGraphFactory("plocal:/proc/unreachable_database"), g, "unreachable_database");
+		report = unreachable.warmUp(TEST_CLASS);
+		Assert.assertFalse(report.isComplete());
+		Assert.assertNotNull(report.getError());
+		Assert.assertSame(report, unreachable.getWarmUpReport());
+		unreachable.close();
+	}
+
+	@Test
+	public void testSchemaCache() throws Exception {
+		ODatabase factory = g.getOFactory("my_database");
+		DB db = factory.getDB();
+		Assert.assertTrue(db.existClass(TEST_CLASS + "_cached", TEST_PKEY, true));
+		Assert.assertTrue(db.existRelationClass(TEST_RELATION + "_cached", true, true));
+
+		// other connections of the database find them in the cache
+		DB other = factory.getDB();
+		long hits = other.getSchemaCache().getHits();
+		Assert.assertTrue(other.existClass(TEST_CLASS + "_cached"));
+		Assert.assertTrue(other.existRelationClass(TEST_RELATION + "_cached", true, true));
+		Assert.assertNotNull(other.getUniqueIndex(TEST_CLASS + "_cached", TEST_PKEY));
+		Assert.assertNotNull(other.getUniqueIndex(TEST_CLASS + "_cached", TEST_PKEY));
+		Assert.assertEquals(hits + 3, other.getSchemaCache().getHits());
+		other.close();
+
+		// dropped classes are forgotten
+		Assert.assertTrue(db.dropClass(TEST_CLASS + "_cached"));
+		Assert.assertTrue(db.dropClass(TEST_RELATION + "_cached"));
+		Assert.assertFalse(db.existClass(TEST_CLASS + "_cached"));
+		Assert.assertFalse(db.existRelationClass(TEST_RELATION + "_cached"));
+		Assert.assertNull(db.getUniqueIndex(TEST_CLASS + "_cached", TEST_PKEY));
+		Assert.assertFalse(db.dropClass(TEST_CLASS + "_cached"));
+
+		// and so is the schema changed by commands
+		db.executeQuery("SELECT FROM V LIMIT 1");
+		Assert.assertNull(db.getUniqueIndex(TEST_CLASS + "_cached", TEST_PKEY));
+		for (String command : new String[] { "CREATE CLASS " + TEST_CLASS + "_cached EXTENDS V", "CREATE PROPERTY " + TEST_CLASS + "_cached." + TEST_PKEY + " STRING", "CREATE INDEX " + TEST_CLASS + "_cached." + TEST_PKEY + " UNIQUE" }) {
+			try {
+				db.executeQuery(command);
+			} catch (ClassCastException e) {
+				// schema commands return no elements
+			}
+		}
+		Assert.assertTrue(db.existClass(TEST_CLASS + "_cached"));
+		Assert.assertNotNull(db.getUniqueIndex(TEST_CLASS + "_cached", TEST_PKEY));
+		db.close();
+	}
+
 	@Test
 	public void testRelationDrop() throws Exception {
 		DB db = g.getOFactory("my_database").getDB();